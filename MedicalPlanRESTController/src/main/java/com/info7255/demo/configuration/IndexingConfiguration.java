@@ -0,0 +1,103 @@
+package com.info7255.demo.configuration;
+
+import com.info7255.demo.service.IndexingListener;
+import com.info7255.demo.service.IndexingPublisher;
+import org.springframework.amqp.core.*;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+@Configuration
+public class IndexingConfiguration {
+    @Value("${plan.indexing.partitions:4}")
+    private int partitions;
+
+    @Value("${plan.indexing.prefetch:250}")
+    private int prefetch;
+
+    @Value("${plan.indexing.batch-size:100}")
+    private int batchSize;
+
+    @Value("${plan.indexing.batch-window:200ms}")
+    private Duration batchWindow;
+
+    // Indexing messages are small JSON claim checks rather than serialized Java maps
+    @Bean
+    MessageConverter messageConverter() {
+        return new Jackson2JsonMessageConverter();
+    }
+
+    @Bean
+    Declarables indexingQueues(TopicExchange exchange) {
+        List<Declarable> declarables = new ArrayList<>();
+        for (int partition = 0; partition < partitions; partition++) {
+            String name = IndexingPublisher.partitionQueue(partition);
+            Queue queue = new Queue(name, false);
+            declarables.add(queue);
+            declarables.add(BindingBuilder.bind(queue).to(exchange).with(name));
+        }
+        declarables.add(new Queue(IndexingPublisher.DEAD_LETTER_QUEUE, true));
+
+        // Messages expire out of the retry queue back onto the exchange, keeping the routing key they were sent with
+        FanoutExchange retryExchange = new FanoutExchange(IndexingPublisher.RETRY_EXCHANGE);
+        Queue retryQueue = QueueBuilder.nonDurable(IndexingPublisher.RETRY_QUEUE)
+                .deadLetterExchange(exchange.getName())
+                .build();
+        declarables.add(retryExchange);
+        declarables.add(retryQueue);
+        declarables.add(BindingBuilder.bind(retryQueue).to(retryExchange));
+        return new Declarables(declarables);
+    }
+
+    // One single-threaded container per partition queue: plans are spread across partitions,
+    // and each partition is drained strictly in order
+    @Bean
+    SmartLifecycle indexingConsumers(ConnectionFactory connectionFactory, IndexingListener receiver) {
+        List<SimpleMessageListenerContainer> containers = new ArrayList<>();
+        for (int partition = 0; partition < partitions; partition++) {
+            SimpleMessageListenerContainer container = new SimpleMessageListenerContainer();
+            container.setConnectionFactory(connectionFactory);
+            container.setQueueNames(IndexingPublisher.partitionQueue(partition));
+            container.setMessageListener(receiver);
+            // Deliver up to batchSize messages at once, or whatever arrived before the window closed
+            container.setConsumerBatchEnabled(true);
+            container.setBatchSize(batchSize);
+            container.setReceiveTimeout(batchWindow.toMillis());
+            container.setPrefetchCount(Math.max(prefetch, batchSize));
+            container.setConcurrentConsumers(1);
+            container.afterPropertiesSet();
+            containers.add(container);
+        }
+
+        return new SmartLifecycle() {
+            private volatile boolean running;
+
+            @Override
+            public void start() {
+                containers.forEach(SimpleMessageListenerContainer::start);
+                running = true;
+            }
+
+            @Override
+            public void stop() {
+                containers.forEach(SimpleMessageListenerContainer::stop);
+                containers.forEach(SimpleMessageListenerContainer::destroy);
+                running = false;
+            }
+
+            @Override
+            public boolean isRunning() {
+                return running;
+            }
+        };
+    }
+}
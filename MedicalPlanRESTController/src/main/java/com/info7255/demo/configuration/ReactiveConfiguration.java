@@ -0,0 +1,47 @@
+package com.info7255.demo.configuration;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.resource.ClientResources;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import reactor.rabbitmq.RabbitFlux;
+import reactor.rabbitmq.Sender;
+import reactor.rabbitmq.SenderOptions;
+
+import java.time.Duration;
+
+// Clients for the non-blocking request path of the reactive profile. Indexing consumers, admin endpoints and
+// search keep using Jedis and Spring AMQP.
+@Configuration
+@Profile("reactive")
+public class ReactiveConfiguration {
+    @Value("${spring.redis.host:localhost}")
+    private String host;
+
+    @Value("${spring.redis.port:6379}")
+    private int port;
+
+    @Value("${spring.redis.timeout:2s}")
+    private Duration timeout;
+
+    @Bean
+    public RedisURI redisURI() {
+        return RedisURI.builder().withHost(host).withPort(port).withTimeout(timeout).build();
+    }
+
+    // Event loops and timers come from the ClientResources Spring Boot creates whenever Lettuce is on the classpath
+    @Bean(destroyMethod = "shutdown")
+    public RedisClient redisClient(ClientResources clientResources, RedisURI redisURI) {
+        return RedisClient.create(clientResources, redisURI);
+    }
+
+    // Shares the broker settings Spring AMQP was configured with
+    @Bean(destroyMethod = "close")
+    public Sender rabbitSender(CachingConnectionFactory connectionFactory) {
+        return RabbitFlux.createSender(new SenderOptions().connectionFactory(connectionFactory.getRabbitConnectionFactory()));
+    }
+}
@@ -1,19 +1,43 @@
 package com.info7255.demo.configuration;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
 import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
-import redis.clients.jedis.Jedis;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
 
-import java.util.Map;
+import java.time.Duration;
 
 @Configuration
 public class RedisConfiguration {
+    @Value("${spring.redis.host:localhost}")
+    private String host;
+
+    @Value("${spring.redis.port:6379}")
+    private int port;
+
+    @Value("${spring.redis.timeout:2s}")
+    private Duration timeout;
+
+    @Value("${spring.redis.jedis.pool.max-active:64}")
+    private int maxActive;
+
+    @Value("${spring.redis.jedis.pool.max-idle:64}")
+    private int maxIdle;
+
+    @Value("${spring.redis.jedis.pool.min-idle:8}")
+    private int minIdle;
+
+    @Value("${spring.redis.jedis.pool.max-wait:2s}")
+    private Duration maxWait;
+
     @Bean
     JedisConnectionFactory jedisConnectionFactory() {
-        return new JedisConnectionFactory();
+        return new JedisConnectionFactory(new RedisStandaloneConfiguration(host, port));
     }
 
     @Bean
@@ -24,7 +48,20 @@ public class RedisConfiguration {
     }
 
     @Bean
-    public Jedis getJedis(){
-        return new JedisPool().getResource();
+    public RedisMessageListenerContainer redisMessageListenerContainer() {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(jedisConnectionFactory());
+        return container;
+    }
+
+    @Bean(destroyMethod = "close")
+    public JedisPool jedisPool() {
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(maxActive);
+        poolConfig.setMaxIdle(maxIdle);
+        poolConfig.setMinIdle(minIdle);
+        poolConfig.setMaxWaitMillis(maxWait.toMillis());
+        poolConfig.setTestWhileIdle(true);
+        return new JedisPool(poolConfig, host, port, (int) timeout.toMillis());
     }
 }
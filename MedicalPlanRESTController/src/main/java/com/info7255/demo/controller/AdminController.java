@@ -0,0 +1,91 @@
+package com.info7255.demo.controller;
+
+import com.info7255.demo.service.PlanBackfill;
+import com.info7255.demo.service.PlanIndexManager;
+import com.info7255.demo.service.PlanService;
+import com.info7255.demo.service.SchemaRegistry;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+@RestController
+public class AdminController {
+    private final PlanService planService;
+    private final SchemaRegistry schemaRegistry;
+    private final PlanIndexManager indexManager;
+    private final PlanBackfill backfill;
+
+    public AdminController(PlanService planService, SchemaRegistry schemaRegistry, PlanIndexManager indexManager,
+                           PlanBackfill backfill) {
+        this.planService = planService;
+        this.schemaRegistry = schemaRegistry;
+        this.indexManager = indexManager;
+        this.backfill = backfill;
+    }
+
+    @PostMapping(value = "/admin/edges/_migrate", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<?>> migrateEdgeIndex() {
+        return blocking(() -> {
+            int migrated = planService.migrateEdgeIndex();
+            System.out.println("Edge registry migrated for " + migrated + " relations");
+            return Map.of("migrated", migrated);
+        }, HttpStatus.OK);
+    }
+
+    @GetMapping(value = "/admin/schemas", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<?>> getSchemaVersions() {
+        return blocking(schemaRegistry::getVersions, HttpStatus.OK);
+    }
+
+    @PostMapping(value = "/admin/schemas/_reload", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<?>> reloadSchemas() {
+        return blocking(schemaRegistry::reload, HttpStatus.OK);
+    }
+
+    @GetMapping(value = "/admin/index", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<?>> getIndexStatus() {
+        return blocking(indexManager::getStatus, HttpStatus.OK);
+    }
+
+    @GetMapping(value = "/admin/index/_migrate", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<?>> getMigrationStatus() {
+        return blocking(indexManager::getMigrationStatus, HttpStatus.OK);
+    }
+
+    @PostMapping(value = "/admin/index/_migrate", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<?>> migrateIndex(@RequestParam int version) {
+        return blocking(() -> indexManager.migrate(version), HttpStatus.ACCEPTED);
+    }
+
+    @GetMapping(value = "/admin/index/_backfill", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<?>> getBackfillStatus() {
+        return blocking(backfill::getStatus, HttpStatus.OK);
+    }
+
+    @PostMapping(value = "/admin/index/_backfill", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<?>> startBackfill(@RequestParam(defaultValue = "false") boolean restart) {
+        return blocking(() -> backfill.start(restart), HttpStatus.ACCEPTED);
+    }
+
+    @PostMapping(value = "/admin/index/_backfill/_stop", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<?>> stopBackfill() {
+        return blocking(backfill::stop, HttpStatus.OK);
+    }
+
+    // Every admin call reads or writes Redis or Elasticsearch with blocking clients, so it runs on the bounded
+    // elastic scheduler: under the reactive profile that keeps it off the event loop, and Spring MVC serves the
+    // Mono asynchronously
+    private Mono<ResponseEntity<?>> blocking(Callable<?> call, HttpStatus status) {
+        return Mono.<ResponseEntity<?>>fromCallable(() -> new ResponseEntity<>(call.call(), status))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+}
@@ -1,53 +1,45 @@
 package com.info7255.demo.controller;
 
-import com.info7255.demo.DemoApplication;
 import com.info7255.demo.exception.*;
 import com.info7255.demo.model.ErrorResponse;
-import com.info7255.demo.model.JwtResponse;
 import com.info7255.demo.service.ETagService;
+import com.info7255.demo.service.IndexingPublisher;
+import com.info7255.demo.service.PlanDocumentMapper;
 import com.info7255.demo.service.PlanService;
-import com.info7255.demo.util.JwtUtil;
-import org.everit.json.schema.Schema;
-import org.everit.json.schema.ValidationException;
-import org.everit.json.schema.loader.SchemaLoader;
+import com.info7255.demo.service.SchemaRegistry;
+import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONTokener;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
 import org.springframework.http.*;
 import org.springframework.web.bind.annotation.*;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.*;
 
+// Servlet stack; the reactive profile serves the same endpoints from ReactivePlanController
 @RestController
+@Profile("!reactive")
 public class PlanController {
+    private static final MediaType MERGE_PATCH = MediaType.valueOf("application/merge-patch+json");
+
     private PlanService planService;
-    private final JwtUtil jwtUtil;
-    private final RabbitTemplate template;
+    private final IndexingPublisher indexingPublisher;
+    private final SchemaRegistry schemaRegistry;
+    private final PlanDocumentMapper documentMapper;
+    private final int bulkBatchSize;
 
-    public PlanController(PlanService planService, JwtUtil jwtUtil, RabbitTemplate template) {
+    public PlanController(PlanService planService, IndexingPublisher indexingPublisher, SchemaRegistry schemaRegistry,
+                          PlanDocumentMapper documentMapper, @Value("${plan.bulk.batch-size:200}") int bulkBatchSize) {
         this.planService = planService;
-        this.jwtUtil = jwtUtil;
-        this.template = template;
-    }
-
-    @GetMapping("/token")
-    public ResponseEntity<JwtResponse> generateToken() {
-        String token = jwtUtil.generateToken();
-        return new ResponseEntity<>(new JwtResponse(token), HttpStatus.CREATED);
-    }
-
-    @PostMapping("/validate")
-    public boolean validateToken(@RequestHeader HttpHeaders requestHeader) {
-        boolean result;
-        String authorization = requestHeader.getFirst("Authorization");
-        if (authorization == null || authorization.isBlank()) throw new UnauthorizedException("Missing token!");
-        try {
-            String token = authorization.split(" ")[1];
-            result = jwtUtil.validateToken(token);
-        } catch (Exception e) {
-            throw new UnauthorizedException("Invalid Token");
-        }
-        return result;
+        this.indexingPublisher = indexingPublisher;
+        this.schemaRegistry = schemaRegistry;
+        this.documentMapper = documentMapper;
+        this.bulkBatchSize = bulkBatchSize;
     }
 
     @PostMapping(value = "/plan", produces = MediaType.APPLICATION_JSON_VALUE)
@@ -55,13 +47,7 @@ public class PlanController {
         if (planObject == null || planObject.isBlank()) throw new BadRequestException("Request body is missing!");
 
         JSONObject plan = new JSONObject(planObject);
-        JSONObject schemaJSON = new JSONObject(new JSONTokener(Objects.requireNonNull(PlanController.class.getResourceAsStream("/plan-schema.json"))));
-        Schema schema = SchemaLoader.load(schemaJSON);
-        try {
-            schema.validate(plan);
-        } catch (ValidationException e) {
-            throw new BadRequestException(e.getMessage());
-        }
+        schemaRegistry.validate("plan", plan);
 
         String key = "plan:" + plan.getString("objectId");
         if (planService.isKeyPresent(key)) throw new ConflictException("Plan already exists!");
@@ -69,12 +55,7 @@ public class PlanController {
         String eTag = planService.createPlan(plan, key);
 
         // Send a message to queue for indexing
-        Map<String, String> message = new HashMap<>();
-        message.put("operation", "SAVE");
-        message.put("body", planObject);
-
-        System.out.println("Sending message: " + message);
-        template.convertAndSend(DemoApplication.queueName, message);
+        indexingPublisher.publishSave(plan.getString("objectId"));
 
         HttpHeaders headersToSend = new HttpHeaders();
         headersToSend.setETag(eTag);
@@ -82,13 +63,94 @@ public class PlanController {
         return new ResponseEntity<>("{\"objectId\": \"" + plan.getString("objectId") + "\"}", headersToSend, HttpStatus.CREATED);
     }
 
+    // Reads one plan per line and answers with one result line per plan, in input order. Lines are handled in
+    // batches, so memory stays bounded by the batch size however large the upload is.
+    @PostMapping(value = "/plans/_bulk", consumes = {"application/x-ndjson", MediaType.TEXT_PLAIN_VALUE})
+    public void bulkCreatePlans(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType("application/x-ndjson");
+        BufferedReader reader = request.getReader();
+        PrintWriter writer = response.getWriter();
+
+        Map<Integer, String> batch = new LinkedHashMap<>();
+        int lineNumber = 0;
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            lineNumber++;
+            if (line.isBlank()) continue;
+            batch.put(lineNumber, line);
+            if (batch.size() == bulkBatchSize) {
+                createPlanBatch(batch, writer);
+                batch.clear();
+            }
+        }
+        createPlanBatch(batch, writer);
+    }
+
+    private void createPlanBatch(Map<Integer, String> batch, PrintWriter writer) {
+        if (batch.isEmpty()) return;
+
+        Map<Integer, JSONObject> results = new TreeMap<>();
+        Map<String, JSONObject> plans = new LinkedHashMap<>();
+        Map<String, Integer> lineOfKey = new HashMap<>();
+        for (Map.Entry<Integer, String> line : batch.entrySet()) {
+            try {
+                JSONObject plan = new JSONObject(line.getValue());
+                schemaRegistry.validate("plan", plan);
+                String key = "plan:" + plan.getString("objectId");
+                if (lineOfKey.containsKey(key)) {
+                    results.put(line.getKey(), bulkError(line.getKey(), HttpStatus.CONFLICT, "Plan already exists on line " + lineOfKey.get(key) + "!"));
+                    continue;
+                }
+                plans.put(key, plan);
+                lineOfKey.put(key, line.getKey());
+            } catch (JSONException | BadRequestException e) {
+                results.put(line.getKey(), bulkError(line.getKey(), HttpStatus.BAD_REQUEST, e.getMessage()));
+            }
+        }
+
+        for (String key : planService.getExistingKeys(plans.keySet())) {
+            plans.remove(key);
+            results.put(lineOfKey.get(key), bulkError(lineOfKey.get(key), HttpStatus.CONFLICT, "Plan already exists!"));
+        }
+
+        List<String> planIds = new ArrayList<>();
+        planService.createPlans(plans).forEach((key, eTag) -> {
+            String objectId = plans.get(key).getString("objectId");
+            planIds.add(objectId);
+            results.put(lineOfKey.get(key), new JSONObject()
+                    .put("line", lineOfKey.get(key))
+                    .put("status", HttpStatus.CREATED.value())
+                    .put("objectId", objectId)
+                    .put("eTag", eTag));
+        });
+        indexingPublisher.publishSaves(planIds);
+
+        results.values().forEach((result) -> writer.println(result.toString()));
+        writer.flush();
+    }
+
+    private JSONObject bulkError(int line, HttpStatus status, String message) {
+        return new JSONObject()
+                .put("line", line)
+                .put("status", status.value())
+                .put("error", message);
+    }
+
     @GetMapping(value = "/{objectType}/{objectId}", produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<?> getPlan(@PathVariable String objectId,
                                      @PathVariable String objectType,
+                                     @RequestParam(required = false) String fields,
+                                     @RequestParam(required = false) Integer depth,
                                      @RequestHeader HttpHeaders headers) {
         String key = objectType + ":" + objectId;
         if (!planService.isKeyPresent(key)) throw new ResourceNotFoundException("Object not found!");
 
+        // A partial view is not the representation the ETag describes, so it is returned without one
+        if (fields != null || depth != null) {
+            if (depth != null && depth < 0) throw new BadRequestException("depth must not be negative!");
+            return new ResponseEntity<>(planService.getPlan(key, fields, depth), HttpStatus.OK);
+        }
+
         // Check if the ETag provided is not corrupt
         List<String> ifNoneMatch;
         try {
@@ -98,20 +160,14 @@ public class PlanController {
         }
 
         String eTag = planService.getETag(key);
-        ;
         HttpHeaders headersToSend = new HttpHeaders();
         headersToSend.setETag(eTag);
 
-
-        if (objectType.equals("plan") && ifNoneMatch.contains(eTag))
+        if (ifNoneMatch.contains(eTag))
             return new ResponseEntity<>(null, headersToSend, HttpStatus.NOT_MODIFIED);
 
         Map<String, Object> objectToReturn = planService.getPlan(key);
-
-        if (objectType.equals("plan"))
-            return new ResponseEntity<>(objectToReturn, headersToSend, HttpStatus.OK);
-
-        return new ResponseEntity<>(objectToReturn, HttpStatus.OK);
+        return new ResponseEntity<>(objectToReturn, headersToSend, HttpStatus.OK);
     }
 
     @DeleteMapping("/{objectType}/{objectId}")
@@ -119,9 +175,6 @@ public class PlanController {
                                         @PathVariable String objectType,
                                         @RequestHeader HttpHeaders headers) {
         String key = objectType + ":" + objectId;
-        if (!planService.isKeyPresent(key)) throw new ResourceNotFoundException("Plan not found!");
-
-        String eTag = planService.getETag(key);
         List<String> ifMatch;
         try {
             ifMatch = headers.getIfMatch();
@@ -130,18 +183,19 @@ public class PlanController {
         }
 
         if (ifMatch.size() == 0) throw new ETagParseException("ETag is not provided with request!");
-        if (!ifMatch.contains(eTag)) return preConditionFailed(eTag);
-
-        // Send message to queue for deleting indices
-        Map<String, Object> plan = planService.getPlan(key);
-        Map<String, String> message = new HashMap<>();
-        message.put("operation", "DELETE");
-        message.put("body",  new JSONObject(plan).toString());
 
-        System.out.println("Sending message: " + message);
-        template.convertAndSend(DemoApplication.queueName, message);
+        // The plan that owns the object has to be found before its parent pointers are deleted
+        String planId = planService.getRootKey(key).split(":")[1];
+        List<String> deletedIds;
+        try {
+            // The message only names the removed documents, taken from the state the delete was checked against
+            deletedIds = documentMapper.collectIds(planService.deletePlan(key, ifMatch));
+        } catch (PreconditionFailedException e) {
+            return preConditionFailed(e.getETag());
+        }
 
-        planService.deletePlan(key);
+        // Send message to queue for deleting indices
+        indexingPublisher.publishDelete(planId, deletedIds);
         return new ResponseEntity<>(HttpStatus.NO_CONTENT);
     }
 
@@ -153,9 +207,6 @@ public class PlanController {
 
         JSONObject plan = new JSONObject(planObject);
         String key = "plan:" + objectId;
-        if (!planService.isKeyPresent(key)) throw new ResourceNotFoundException("Plan not found!");
-
-        String eTag = planService.getETag(key);
         List<String> ifMatch;
         try {
             ifMatch = headers.getIfMatch();
@@ -164,35 +215,23 @@ public class PlanController {
         }
 
         if (ifMatch.size() == 0) throw new ETagParseException("ETag is not provided with request!");
-        if (!ifMatch.contains(eTag)) return preConditionFailed(eTag);
+        schemaRegistry.validate("plan", plan);
+        // The body is written under its own objectType and objectId, so it may only replace the plan in the path
+        if (!key.equals(plan.get("objectType") + ":" + plan.get("objectId")))
+            throw new BadRequestException("objectType and objectId of the body must match the plan being replaced!");
 
-        JSONObject schemaJSON = new JSONObject(new JSONTokener(Objects.requireNonNull(PlanController.class.getResourceAsStream("/plan-schema.json"))));
-        Schema schema = SchemaLoader.load(schemaJSON);
+        PlanService.PatchResult result;
         try {
-            schema.validate(plan);
-        } catch (ValidationException e) {
-            throw new BadRequestException(e.getMessage());
+            result = planService.replacePlan(key, plan, ifMatch);
+        } catch (PreconditionFailedException e) {
+            return preConditionFailed(e.getETag());
         }
-        // Send message to queue for deleting previous indices incase of put
-        Map<String, Object> oldPlan = planService.getPlan(key);
-        Map<String, String> message = new HashMap<>();
-        message.put("operation", "DELETE");
-        message.put("body", new JSONObject(oldPlan).toString());
+        String updatedETag = result.getETag();
 
-        System.out.println("Sending message: " + message);
-        template.convertAndSend(DemoApplication.queueName, message);
-
-        planService.deletePlan(key);
-        String updatedETag = planService.createPlan(plan, key);
-
-        // Send message to queue for index update
-        Map<String, Object> newPlan = planService.getPlan(key);
-        message = new HashMap<>();
-        message.put("operation", "SAVE");
-        message.put("body", new JSONObject(newPlan).toString());
-
-        System.out.println("Sending message: " + message);
-        template.convertAndSend(DemoApplication.queueName, message);
+        // Send one message listing only the documents that were added, changed or removed
+        PlanDocumentMapper.Diff diff = documentMapper.diff(documentMapper.toDocuments(result.getPrevious()),
+                documentMapper.toDocuments(result.getPatched()));
+        if (!diff.isEmpty()) indexingPublisher.publishUpdate(objectId, diff.getUpserts(), diff.getDeletes());
 
         HttpHeaders headersToSend = new HttpHeaders();
         headersToSend.setETag(updatedETag);
@@ -201,17 +240,18 @@ public class PlanController {
                 HttpStatus.OK);
     }
 
+    // application/merge-patch+json follows RFC 7386: arrays are replaced and null removes a member. Plain
+    // application/json keeps merging arrays of objects item by item on objectId, as earlier clients expect.
+    // Sub-objects are patched in place and validated against the schema of their own objectType.
     @PatchMapping(value = "/{objectType}/{objectId}", produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<?> patchPlan(@PathVariable String objectId,
+                                       @PathVariable String objectType,
                                        @RequestBody(required = false) String planObject,
                                        @RequestHeader HttpHeaders headers) {
         if (planObject == null || planObject.isBlank()) throw new BadRequestException("Request body is missing!");
 
-        JSONObject plan = new JSONObject(planObject);
-        String key = "plan:" + objectId;
-        if (!planService.isKeyPresent(key)) throw new ResourceNotFoundException("Plan not found!");
-
-        String eTag = planService.getETag(key);
+        JSONObject patch = new JSONObject(planObject);
+        String key = objectType + ":" + objectId;
         List<String> ifMatch;
         try {
             ifMatch = headers.getIfMatch();
@@ -220,20 +260,24 @@ public class PlanController {
         }
 
         if (ifMatch.size() == 0) throw new ETagParseException("ETag is not provided with request!");
-        if (!ifMatch.contains(eTag)) return preConditionFailed(eTag);
-
-        String updatedEtag = planService.createPlan(plan, key);
 
-        // Send message to queue for index update
-        Map<String, String> message = new HashMap<>();
-        message.put("operation", "SAVE");
-        message.put("body", planObject);
+        MediaType contentType = headers.getContentType();
+        boolean mergeArraysById = contentType == null || !MERGE_PATCH.isCompatibleWith(contentType);
+        PlanService.PatchResult result;
+        try {
+            result = planService.mergePatch(key, patch, mergeArraysById, ifMatch);
+        } catch (PreconditionFailedException e) {
+            return preConditionFailed(e.getETag());
+        }
 
-        System.out.println("Sending message: " + message);
-        template.convertAndSend(DemoApplication.queueName, message);
+        // Send a message to queue for index update; the result holds the whole plan, also for a sub-object patch
+        PlanDocumentMapper.Diff diff = documentMapper.diff(documentMapper.toDocuments(result.getPrevious()),
+                documentMapper.toDocuments(result.getPatched()));
+        String planId = String.valueOf(result.getPatched().get("objectId"));
+        if (!diff.isEmpty()) indexingPublisher.publishUpdate(planId, diff.getUpserts(), diff.getDeletes());
 
         return ResponseEntity.ok()
-                .eTag(updatedEtag)
+                .eTag(result.getETag())
                 .body(new JSONObject().put("message: ", "Plan updated successfully!!").toString());
     }
 
@@ -0,0 +1,175 @@
+package com.info7255.demo.controller;
+
+import com.info7255.demo.exception.*;
+import com.info7255.demo.model.ErrorResponse;
+import com.info7255.demo.service.PlanDocumentMapper;
+import com.info7255.demo.service.PlanService;
+import com.info7255.demo.service.ReactiveIndexingPublisher;
+import com.info7255.demo.service.ReactivePlanService;
+import com.info7255.demo.service.SchemaRegistry;
+import org.json.JSONObject;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.*;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Mono;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+// Plan CRUD with the status codes and ETag rules of PlanController, without holding a thread while Redis
+// or RabbitMQ answer. Bulk NDJSON uploads stay on the servlet stack.
+@RestController
+@Profile("reactive")
+public class ReactivePlanController {
+    private static final MediaType MERGE_PATCH = MediaType.valueOf("application/merge-patch+json");
+
+    private final ReactivePlanService planService;
+    private final ReactiveIndexingPublisher indexingPublisher;
+    private final SchemaRegistry schemaRegistry;
+    private final PlanDocumentMapper documentMapper;
+
+    public ReactivePlanController(ReactivePlanService planService, ReactiveIndexingPublisher indexingPublisher,
+                                  SchemaRegistry schemaRegistry, PlanDocumentMapper documentMapper) {
+        this.planService = planService;
+        this.indexingPublisher = indexingPublisher;
+        this.schemaRegistry = schemaRegistry;
+        this.documentMapper = documentMapper;
+    }
+
+    @PostMapping(value = "/plan", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<String>> createPlan(@RequestBody(required = false) String planObject) {
+        if (planObject == null || planObject.isBlank()) throw new BadRequestException("Request body is missing!");
+
+        JSONObject plan = new JSONObject(planObject);
+        schemaRegistry.validate("plan", plan);
+
+        String objectId = plan.getString("objectId");
+        String key = "plan:" + objectId;
+        return planService.isKeyPresent(key)
+                .flatMap((present) -> present
+                        ? Mono.<String>error(new ConflictException("Plan already exists!"))
+                        : planService.createPlan(plan, key))
+                .flatMap((eTag) -> indexingPublisher.publishSave(objectId)
+                        .thenReturn(ResponseEntity.status(HttpStatus.CREATED).eTag(eTag).body("{\"objectId\": \"" + objectId + "\"}")));
+    }
+
+    @GetMapping(value = "/{objectType}/{objectId}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<Map<String, Object>>> getPlan(@PathVariable String objectId,
+                                                             @PathVariable String objectType,
+                                                             @RequestParam(required = false) String fields,
+                                                             @RequestParam(required = false) Integer depth,
+                                                             @RequestHeader HttpHeaders headers) {
+        String key = objectType + ":" + objectId;
+
+        // A partial view is not the representation the ETag describes, so it is returned without one
+        if (fields != null || depth != null) {
+            if (depth != null && depth < 0) throw new BadRequestException("depth must not be negative!");
+            return planService.getPlan(key, fields, depth)
+                    .switchIfEmpty(Mono.error(() -> new ResourceNotFoundException("Object not found!")))
+                    .map(ResponseEntity::ok);
+        }
+
+        List<String> ifNoneMatch;
+        try {
+            ifNoneMatch = headers.getIfNoneMatch();
+        } catch (Exception e) {
+            throw new ETagParseException("ETag value invalid! Make sure the ETag value is a string!");
+        }
+
+        return planService.getETag(key)
+                .switchIfEmpty(Mono.error(() -> new ResourceNotFoundException("Object not found!")))
+                .flatMap((eTag) -> {
+                    if (ifNoneMatch.contains(eTag)) return Mono.just(ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).<Map<String, Object>>build());
+                    return planService.getPlan(key, null, null).map((plan) -> ResponseEntity.ok().eTag(eTag).body(plan));
+                });
+    }
+
+    @DeleteMapping("/{objectType}/{objectId}")
+    public Mono<ResponseEntity<Object>> deletePlan(@PathVariable String objectId,
+                                                   @PathVariable String objectType,
+                                                   @RequestHeader HttpHeaders headers) {
+        String key = objectType + ":" + objectId;
+        List<String> ifMatch = getIfMatch(headers);
+
+        // The plan that owns the object has to be found before its parent pointers are deleted
+        return planService.getRootKey(key)
+                .flatMap((rootKey) -> planService.deletePlan(key, ifMatch)
+                        .flatMap((deleted) -> indexingPublisher.publishDelete(rootKey.split(":")[1], documentMapper.collectIds(deleted))))
+                .thenReturn(ResponseEntity.noContent().<Object>build())
+                .onErrorResume(PreconditionFailedException.class, (e) -> Mono.just(preConditionFailed(e.getETag())));
+    }
+
+    @PutMapping(value = "/plan/{objectId}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<Object>> updatePlan(@PathVariable String objectId,
+                                                   @RequestBody(required = false) String planObject,
+                                                   @RequestHeader HttpHeaders headers) {
+        if (planObject == null || planObject.isBlank()) throw new BadRequestException("Request body is missing!");
+
+        JSONObject plan = new JSONObject(planObject);
+        List<String> ifMatch = getIfMatch(headers);
+        schemaRegistry.validate("plan", plan);
+        String key = "plan:" + objectId;
+        // The body is written under its own objectType and objectId, so it may only replace the plan in the path
+        if (!key.equals(plan.get("objectType") + ":" + plan.get("objectId")))
+            throw new BadRequestException("objectType and objectId of the body must match the plan being replaced!");
+
+        return planService.replacePlan(key, plan, ifMatch)
+                .flatMap((result) -> publishDiff(result)
+                        .thenReturn(ResponseEntity.ok().eTag(result.getETag()).body((Object) "{\"message\": \"Plan updated successfully\"}")))
+                .onErrorResume(PreconditionFailedException.class, (e) -> Mono.just(preConditionFailed(e.getETag())));
+    }
+
+    // application/merge-patch+json follows RFC 7386; plain application/json merges arrays of objects on objectId.
+    // Sub-objects are patched in place and validated against the schema of their own objectType.
+    @PatchMapping(value = "/{objectType}/{objectId}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<Object>> patchPlan(@PathVariable String objectId,
+                                                  @PathVariable String objectType,
+                                                  @RequestBody(required = false) String planObject,
+                                                  @RequestHeader HttpHeaders headers) {
+        if (planObject == null || planObject.isBlank()) throw new BadRequestException("Request body is missing!");
+
+        JSONObject patch = new JSONObject(planObject);
+        List<String> ifMatch = getIfMatch(headers);
+        MediaType contentType = headers.getContentType();
+        boolean mergeArraysById = contentType == null || !MERGE_PATCH.isCompatibleWith(contentType);
+
+        return planService.patchPlan(objectType + ":" + objectId, patch, mergeArraysById, ifMatch)
+                .flatMap((result) -> publishDiff(result)
+                        .thenReturn(ResponseEntity.ok().eTag(result.getETag())
+                                .body((Object) new JSONObject().put("message: ", "Plan updated successfully!!").toString())))
+                .onErrorResume(PreconditionFailedException.class, (e) -> Mono.just(preConditionFailed(e.getETag())));
+    }
+
+    // Sends one message listing only the documents that were added, changed or removed. The result holds the whole
+    // plan, also when a sub-object was patched.
+    private Mono<Void> publishDiff(PlanService.PatchResult result) {
+        PlanDocumentMapper.Diff diff = documentMapper.diff(documentMapper.toDocuments(result.getPrevious()),
+                documentMapper.toDocuments(result.getPatched()));
+        if (diff.isEmpty()) return Mono.empty();
+        return indexingPublisher.publishUpdate(String.valueOf(result.getPatched().get("objectId")), diff.getUpserts(), diff.getDeletes());
+    }
+
+    private List<String> getIfMatch(HttpHeaders headers) {
+        List<String> ifMatch;
+        try {
+            ifMatch = headers.getIfMatch();
+        } catch (Exception e) {
+            throw new ETagParseException("ETag value invalid! Make sure the ETag value is a string!");
+        }
+        if (ifMatch.size() == 0) throw new ETagParseException("ETag is not provided with request!");
+        return ifMatch;
+    }
+
+    private ResponseEntity<Object> preConditionFailed(String eTag) {
+        HttpHeaders headersToSend = new HttpHeaders();
+        headersToSend.setETag(eTag);
+        ErrorResponse errorResponse = new ErrorResponse(
+                "Plan has been updated",
+                HttpStatus.PRECONDITION_FAILED.value(),
+                new Date(),
+                HttpStatus.PRECONDITION_REQUIRED.getReasonPhrase()
+        );
+        return new ResponseEntity<>(errorResponse, headersToSend, HttpStatus.PRECONDITION_FAILED);
+    }
+}
@@ -0,0 +1,28 @@
+package com.info7255.demo.controller;
+
+import com.info7255.demo.model.PlanSearchQuery;
+import com.info7255.demo.service.PlanSearchService;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+@RestController
+public class SearchController {
+    private final PlanSearchService searchService;
+
+    public SearchController(PlanSearchService searchService) {
+        this.searchService = searchService;
+    }
+
+    // The search client and the cache's Redis publish block, so the call runs on the bounded elastic scheduler:
+    // under the reactive profile that keeps it off the event loop, and Spring MVC serves the Mono asynchronously
+    @GetMapping(value = "/search", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<?>> search(PlanSearchQuery query) {
+        return Mono.<ResponseEntity<?>>fromCallable(() -> new ResponseEntity<>(searchService.search(query), HttpStatus.OK))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+}
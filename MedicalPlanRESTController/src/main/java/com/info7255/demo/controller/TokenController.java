@@ -0,0 +1,42 @@
+package com.info7255.demo.controller;
+
+import com.info7255.demo.exception.UnauthorizedException;
+import com.info7255.demo.model.JwtResponse;
+import com.info7255.demo.util.JwtUtil;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+
+// Served by both the servlet and the reactive stack
+@RestController
+public class TokenController {
+    private final JwtUtil jwtUtil;
+
+    public TokenController(JwtUtil jwtUtil) {
+        this.jwtUtil = jwtUtil;
+    }
+
+    @GetMapping("/token")
+    public ResponseEntity<JwtResponse> generateToken() {
+        String token = jwtUtil.generateToken();
+        return new ResponseEntity<>(new JwtResponse(token), HttpStatus.CREATED);
+    }
+
+    @PostMapping("/validate")
+    public boolean validateToken(@RequestHeader HttpHeaders requestHeader) {
+        boolean result;
+        String authorization = requestHeader.getFirst("Authorization");
+        if (authorization == null || authorization.isBlank()) throw new UnauthorizedException("Missing token!");
+        try {
+            String token = authorization.split(" ")[1];
+            result = jwtUtil.validateToken(token);
+        } catch (Exception e) {
+            throw new UnauthorizedException("Invalid Token");
+        }
+        return result;
+    }
+}
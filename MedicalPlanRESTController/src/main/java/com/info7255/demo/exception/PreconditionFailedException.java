@@ -0,0 +1,19 @@
+package com.info7255.demo.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+// Carries the current ETag so the caller can hand it back with the 412
+@ResponseStatus(HttpStatus.PRECONDITION_FAILED)
+public class PreconditionFailedException extends RuntimeException {
+    private final String eTag;
+
+    public PreconditionFailedException(String eTag) {
+        super("Plan has been updated");
+        this.eTag = eTag;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+}
@@ -0,0 +1,48 @@
+package com.info7255.demo.filter;
+
+import com.info7255.demo.model.ErrorResponse;
+import com.info7255.demo.util.JwtUtil;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+
+// The bearer token check shared by JwtFilter and ReactiveJwtFilter, which only differ in how they answer
+@Component
+public class JwtAuthenticator {
+
+    private final JwtUtil jwtUtil;
+
+    public JwtAuthenticator(JwtUtil jwtUtil) {
+        this.jwtUtil = jwtUtil;
+    }
+
+    public boolean isExcluded(String path) {
+        return "/token".equals(path);
+    }
+
+    // Returns the 401 to send for the Authorization header, or null if it carries a valid token
+    public ErrorResponse authenticate(String authorizationHeader) {
+        if (authorizationHeader == null) return unauthorized("Token missing");
+
+        boolean isValid;
+        try {
+            String token = authorizationHeader.substring(7);
+            isValid = jwtUtil.validateToken(token);
+        } catch (Exception e) {
+            System.out.println(e);
+            isValid = false;
+        }
+
+        return isValid ? null : unauthorized("Invalid Token!");
+    }
+
+    private ErrorResponse unauthorized(String message) {
+        return new ErrorResponse(
+                message,
+                HttpStatus.UNAUTHORIZED.value(),
+                new Date(),
+                HttpStatus.UNAUTHORIZED.getReasonPhrase()
+        );
+    }
+}
@@ -2,7 +2,6 @@ package com.info7255.demo.filter;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.info7255.demo.model.ErrorResponse;
-import com.info7255.demo.util.JwtUtil;
 
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -15,61 +14,27 @@ import javax.servlet.http.HttpServletResponse;
 
 import java.io.IOException;
 
-import java.util.Date;
-
 @Component
 public class JwtFilter extends OncePerRequestFilter {
 
     private final ObjectMapper mapper;
-    private final JwtUtil jwtUtil;
+    private final JwtAuthenticator authenticator;
 
-    public JwtFilter(ObjectMapper mapper, JwtUtil jwtUtil) {
+    public JwtFilter(ObjectMapper mapper, JwtAuthenticator authenticator) {
         this.mapper = mapper;
-        this.jwtUtil = jwtUtil;
+        this.authenticator = authenticator;
     }
 
     @Override
     protected boolean shouldNotFilter(HttpServletRequest request) {
-        String path = request.getRequestURI();
-        return "/token".equals(path);
+        return authenticator.isExcluded(request.getRequestURI());
     }
 
     @Override
     protected void doFilterInternal(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse, FilterChain filterChain) throws ServletException, IOException {
-        final String authorizationHeader = httpServletRequest.getHeader("Authorization");
-
-        if (authorizationHeader == null) {
-            ErrorResponse errorResponse = new ErrorResponse(
-                    "Token missing",
-                    HttpStatus.UNAUTHORIZED.value(),
-                    new Date(),
-                    HttpStatus.UNAUTHORIZED.getReasonPhrase()
-            );
-
-            httpServletResponse.setStatus(HttpStatus.UNAUTHORIZED.value());
-            httpServletResponse.setContentType(MediaType.APPLICATION_JSON_VALUE);
-
-            mapper.writeValue(httpServletResponse.getWriter(), errorResponse);
-            return;
-        }
-
-        boolean isValid;
-        try {
-            String token = authorizationHeader.substring(7);
-            isValid = jwtUtil.validateToken(token);
-        } catch (Exception e) {
-            System.out.println(e);
-            isValid = false;
-        }
-
-        if (!isValid) {
-            ErrorResponse errorResponse = new ErrorResponse(
-                    "Invalid Token!",
-                    HttpStatus.UNAUTHORIZED.value(),
-                    new Date(),
-                    HttpStatus.UNAUTHORIZED.getReasonPhrase()
-            );
+        ErrorResponse errorResponse = authenticator.authenticate(httpServletRequest.getHeader("Authorization"));
 
+        if (errorResponse != null) {
             httpServletResponse.setStatus(HttpStatus.UNAUTHORIZED.value());
             httpServletResponse.setContentType(MediaType.APPLICATION_JSON_VALUE);
 
@@ -0,0 +1,47 @@
+package com.info7255.demo.filter;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.info7255.demo.model.ErrorResponse;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+// JwtFilter for the reactive profile, where servlet filters do not run
+@Component
+@Profile("reactive")
+public class ReactiveJwtFilter implements WebFilter {
+
+    private final ObjectMapper mapper;
+    private final JwtAuthenticator authenticator;
+
+    public ReactiveJwtFilter(ObjectMapper mapper, JwtAuthenticator authenticator) {
+        this.mapper = mapper;
+        this.authenticator = authenticator;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        if (authenticator.isExcluded(exchange.getRequest().getPath().value())) return chain.filter(exchange);
+
+        ErrorResponse errorResponse = authenticator.authenticate(exchange.getRequest().getHeaders().getFirst("Authorization"));
+        if (errorResponse != null) return unauthorized(exchange.getResponse(), errorResponse);
+        return chain.filter(exchange);
+    }
+
+    private Mono<Void> unauthorized(ServerHttpResponse response, ErrorResponse errorResponse) {
+        response.setStatusCode(HttpStatus.UNAUTHORIZED);
+        response.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+        try {
+            return response.writeWith(Mono.just(response.bufferFactory().wrap(mapper.writeValueAsBytes(errorResponse))));
+        } catch (JsonProcessingException e) {
+            return Mono.error(e);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.info7255.demo.model;
+
+// Claim check for an indexing change: consumers read the plan itself from Redis
+public class IndexingMessage {
+
+    private String operation;
+    private String planId;
+    private long version;
+    // Epoch millis when the change was published, for measuring indexing lag
+    private long publishedAt;
+
+    public IndexingMessage() {
+    }
+
+    public IndexingMessage(String operation, String planId, long version, long publishedAt) {
+        this.operation = operation;
+        this.planId = planId;
+        this.version = version;
+        this.publishedAt = publishedAt;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public void setOperation(String operation) {
+        this.operation = operation;
+    }
+
+    public String getPlanId() {
+        return planId;
+    }
+
+    public void setPlanId(String planId) {
+        this.planId = planId;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public long getPublishedAt() {
+        return publishedAt;
+    }
+
+    public void setPublishedAt(long publishedAt) {
+        this.publishedAt = publishedAt;
+    }
+
+    @Override
+    public String toString() {
+        return operation + " plan:" + planId + " v" + version;
+    }
+}
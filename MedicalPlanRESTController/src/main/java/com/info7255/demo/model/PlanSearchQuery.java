@@ -0,0 +1,158 @@
+package com.info7255.demo.model;
+
+// Query parameters of GET /search, bound by name
+public class PlanSearchQuery {
+
+    private String type;
+    private String org;
+    private String objectId;
+    private String objectType;
+    private String planType;
+    private String name;
+    private Long copay;
+    private Long deductible;
+    private String parentType;
+    private String parentId;
+    private String childType;
+    private String childId;
+    private Long childCopay;
+    private Long childDeductible;
+    private Integer size;
+    private String cursor;
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getOrg() {
+        return org;
+    }
+
+    public void setOrg(String org) {
+        this.org = org;
+    }
+
+    public String getObjectId() {
+        return objectId;
+    }
+
+    public void setObjectId(String objectId) {
+        this.objectId = objectId;
+    }
+
+    public String getObjectType() {
+        return objectType;
+    }
+
+    public void setObjectType(String objectType) {
+        this.objectType = objectType;
+    }
+
+    public String getPlanType() {
+        return planType;
+    }
+
+    public void setPlanType(String planType) {
+        this.planType = planType;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public Long getCopay() {
+        return copay;
+    }
+
+    public void setCopay(Long copay) {
+        this.copay = copay;
+    }
+
+    public Long getDeductible() {
+        return deductible;
+    }
+
+    public void setDeductible(Long deductible) {
+        this.deductible = deductible;
+    }
+
+    public String getParentType() {
+        return parentType;
+    }
+
+    public void setParentType(String parentType) {
+        this.parentType = parentType;
+    }
+
+    public String getParentId() {
+        return parentId;
+    }
+
+    public void setParentId(String parentId) {
+        this.parentId = parentId;
+    }
+
+    public String getChildType() {
+        return childType;
+    }
+
+    public void setChildType(String childType) {
+        this.childType = childType;
+    }
+
+    public String getChildId() {
+        return childId;
+    }
+
+    public void setChildId(String childId) {
+        this.childId = childId;
+    }
+
+    public Long getChildCopay() {
+        return childCopay;
+    }
+
+    public void setChildCopay(Long childCopay) {
+        this.childCopay = childCopay;
+    }
+
+    public Long getChildDeductible() {
+        return childDeductible;
+    }
+
+    public void setChildDeductible(Long childDeductible) {
+        this.childDeductible = childDeductible;
+    }
+
+    public Integer getSize() {
+        return size;
+    }
+
+    public void setSize(Integer size) {
+        this.size = size;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    @Override
+    public String toString() {
+        return "type=" + type + "&org=" + org + "&objectId=" + objectId + "&objectType=" + objectType
+                + "&planType=" + planType + "&name=" + name + "&copay=" + copay + "&deductible=" + deductible
+                + "&parentType=" + parentType + "&parentId=" + parentId + "&childType=" + childType + "&childId=" + childId
+                + "&childCopay=" + childCopay + "&childDeductible=" + childDeductible + "&size=" + size + "&cursor=" + cursor;
+    }
+}
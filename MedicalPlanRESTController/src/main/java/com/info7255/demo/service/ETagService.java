@@ -6,17 +6,37 @@ import org.springframework.stereotype.Service;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
-import java.util.List;
+import java.util.*;
 
 @Service
 public class ETagService {
     public String getETag( JSONObject json) {
+        return hash(json.toString());
+    }
+
+    // Hashes a node's own fields together with the ETags of its children. Children of one relation
+    // are sorted because Redis sets have no order; lengths are prefixed so values cannot run together.
+    public String getNodeETag(Map<String, String> fields, Map<String, List<String>> children) {
+        StringBuilder content = new StringBuilder();
+        new TreeMap<>(fields).forEach((key, value) -> append(append(content, key).append('='), String.valueOf(value)).append(';'));
+        new TreeMap<>(children).forEach((relation, eTags) -> {
+            List<String> sorted = new ArrayList<>(eTags);
+            sorted.removeIf(Objects::isNull);
+            Collections.sort(sorted);
+            append(content, relation).append("->").append(String.join(",", sorted)).append(';');
+        });
+        return hash(content.toString());
+    }
+
+    private StringBuilder append(StringBuilder content, String value) {
+        return content.append(value.length()).append(':').append(value);
+    }
 
+    private String hash(String content) {
         String encoded=null;
         try {
             MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(json.toString().getBytes(StandardCharsets.UTF_8));
+            byte[] hash = digest.digest(content.getBytes(StandardCharsets.UTF_8));
             encoded = Base64.getEncoder().encodeToString(hash);
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
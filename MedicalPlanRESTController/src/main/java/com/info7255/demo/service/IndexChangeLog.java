@@ -0,0 +1,145 @@
+package com.info7255.demo.service;
+
+import org.springframework.stereotype.Service;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Per-plan record of documents waiting to be indexed, plus a version that orders indexing messages.
+// Every message indexes everything pending for its plan, so a change is indexed by the first message that follows
+// it even if the message recorded with it was never sent; the version only picks the newest message in a batch.
+@Service
+public class IndexChangeLog {
+    static final String VERSION_PREFIX = "index-version:";
+    static final String UPSERTS_PREFIX = "index-upserts:";
+    static final String DELETES_PREFIX = "index-deletes:";
+    // Upsert member meaning every document of the plan
+    static final String ALL = "*";
+
+    private final JedisPool jedisPool;
+
+    public IndexChangeLog(JedisPool jedisPool) {
+        this.jedisPool = jedisPool;
+    }
+
+    // Records changed document ids (null upserts for the whole plan) and returns the plan's new version
+    public long record(String planId, Collection<String> upserts, Collection<String> deletes) {
+        try (Jedis jedis = jedisPool.getResource()) {
+            Transaction transaction = jedis.multi();
+            if (upserts == null) {
+                transaction.sadd(UPSERTS_PREFIX + planId, ALL);
+            } else if (!upserts.isEmpty()) {
+                transaction.sadd(UPSERTS_PREFIX + planId, upserts.toArray(new String[0]));
+            }
+            if (!deletes.isEmpty()) transaction.sadd(DELETES_PREFIX + planId, deletes.toArray(new String[0]));
+            Response<Long> version = transaction.incr(VERSION_PREFIX + planId);
+            transaction.exec();
+            return version.get();
+        }
+    }
+
+    // Records whole-plan changes for many plans in one round trip and returns each plan's new version
+    public Map<String, Long> recordAll(Collection<String> planIds) {
+        try (Jedis jedis = jedisPool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            Map<String, Response<Long>> versions = new LinkedHashMap<>();
+            for (String planId : planIds) {
+                pipeline.multi();
+                pipeline.sadd(UPSERTS_PREFIX + planId, ALL);
+                versions.put(planId, pipeline.incr(VERSION_PREFIX + planId));
+                pipeline.exec();
+            }
+            pipeline.sync();
+
+            Map<String, Long> result = new LinkedHashMap<>();
+            versions.forEach((planId, version) -> result.put(planId, version.get()));
+            return result;
+        }
+    }
+
+    // Current version of each plan, seeding 1 for plans never published: their documents may already be in the index
+    // at version 1 or more, copied there by a migration, and a write at version 0 would be refused as a conflict.
+    // SETNX leaves a version set by a concurrent publish alone. Read before the plans themselves, so the state
+    // written to the index is at least as new as the version it is tagged with.
+    public Map<String, Long> seededVersions(Collection<String> planIds) {
+        try (Jedis jedis = jedisPool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            Map<String, Response<String>> versions = new LinkedHashMap<>();
+            for (String planId : planIds) {
+                pipeline.setnx(VERSION_PREFIX + planId, "1");
+                versions.put(planId, pipeline.get(VERSION_PREFIX + planId));
+            }
+            pipeline.sync();
+
+            Map<String, Long> result = new LinkedHashMap<>();
+            versions.forEach((planId, version) -> result.put(planId, Long.parseLong(version.get())));
+            return result;
+        }
+    }
+
+    // Read in one MULTI, so the pending ids are exactly the changes up to the returned version
+    public Pending pending(String planId) {
+        try (Jedis jedis = jedisPool.getResource()) {
+            Transaction transaction = jedis.multi();
+            Response<String> version = transaction.get(VERSION_PREFIX + planId);
+            Response<Set<String>> upserts = transaction.smembers(UPSERTS_PREFIX + planId);
+            Response<Set<String>> deletes = transaction.smembers(DELETES_PREFIX + planId);
+            transaction.exec();
+            return new Pending(planId, version.get() == null ? 0 : Long.parseLong(version.get()), upserts.get(), deletes.get());
+        }
+    }
+
+    // Removes only what was read, so changes recorded while the batch was being indexed stay pending
+    public void acknowledge(List<Pending> indexed) {
+        try (Jedis jedis = jedisPool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            for (Pending pending : indexed) {
+                if (!pending.upserts.isEmpty()) pipeline.srem(UPSERTS_PREFIX + pending.planId, pending.upserts.toArray(new String[0]));
+                if (!pending.deletes.isEmpty()) pipeline.srem(DELETES_PREFIX + pending.planId, pending.deletes.toArray(new String[0]));
+            }
+            pipeline.sync();
+        }
+    }
+
+    public static class Pending {
+        private final String planId;
+        private final long version;
+        private final Set<String> upserts;
+        private final Set<String> deletes;
+
+        private Pending(String planId, long version, Set<String> upserts, Set<String> deletes) {
+            this.planId = planId;
+            this.version = version;
+            this.upserts = upserts;
+            this.deletes = deletes;
+        }
+
+        public String getPlanId() {
+            return planId;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public boolean isUpsert(String objectId) {
+            return upserts.contains(ALL) || upserts.contains(objectId);
+        }
+
+        public Set<String> getDeletes() {
+            return deletes;
+        }
+
+        public boolean isEmpty() {
+            return upserts.isEmpty() && deletes.isEmpty();
+        }
+    }
+}
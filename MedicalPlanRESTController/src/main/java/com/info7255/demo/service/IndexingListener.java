@@ -1,381 +1,233 @@
 package com.info7255.demo.service;
 
-import org.elasticsearch.action.DocWriteResponse;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.info7255.demo.model.IndexingMessage;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.DocWriteRequest;
 import org.elasticsearch.action.delete.DeleteRequest;
-import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.index.IndexRequest;
-import org.elasticsearch.action.index.IndexResponse;
-import org.elasticsearch.action.support.WriteRequest;
-import org.elasticsearch.client.RequestOptions;
-import org.elasticsearch.client.RestHighLevelClient;
-import org.elasticsearch.client.indices.CreateIndexRequest;
-import org.elasticsearch.client.indices.CreateIndexResponse;
-import org.elasticsearch.client.indices.GetIndexRequest;
-import org.elasticsearch.common.settings.Settings;
-import org.elasticsearch.common.xcontent.XContentBuilder;
-import org.elasticsearch.common.xcontent.XContentFactory;
-import org.json.JSONArray;
-import org.json.JSONObject;
+import org.elasticsearch.index.VersionType;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.BatchMessageListener;
+import org.springframework.amqp.core.Message;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
 import java.util.*;
 
 @Component
-public class IndexingListener {
-    private final RestHighLevelClient client;
-    private static final String INDEX_NAME = "plan-index";
-    private static LinkedHashMap<String, Map<String, Object>> MapOfDocuments = new LinkedHashMap<>();
-    private static ArrayList<String> listOfKeys = new ArrayList<>();
-
-    public IndexingListener(RestHighLevelClient client) {
-        this.client = client;
+public class IndexingListener implements BatchMessageListener {
+    private final PlanIndexManager indexManager;
+    private final PlanIndexWriter indexWriter;
+    private final PlanDocumentMapper documentMapper;
+    private final PlanService planService;
+    private final IndexChangeLog changeLog;
+    private final SearchCache searchCache;
+    private final IndexingPublisher indexingPublisher;
+    private final IndexingMetrics indexingMetrics;
+    private final int maxBatchAttempts;
+    private final Duration batchBackoff;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public IndexingListener(PlanIndexManager indexManager,
+                            PlanIndexWriter indexWriter,
+                            PlanDocumentMapper documentMapper,
+                            PlanService planService,
+                            IndexChangeLog changeLog,
+                            SearchCache searchCache,
+                            IndexingPublisher indexingPublisher,
+                            IndexingMetrics indexingMetrics,
+                            @Value("${plan.indexing.max-batch-attempts:3}") int maxBatchAttempts,
+                            @Value("${plan.indexing.batch-backoff:200ms}") Duration batchBackoff) {
+        this.indexManager = indexManager;
+        this.indexWriter = indexWriter;
+        this.documentMapper = documentMapper;
+        this.planService = planService;
+        this.changeLog = changeLog;
+        this.searchCache = searchCache;
+        this.indexingPublisher = indexingPublisher;
+        this.indexingMetrics = indexingMetrics;
+        this.maxBatchAttempts = maxBatchAttempts;
+        this.batchBackoff = batchBackoff;
     }
 
-    public void receiveMessage(Map<String, String> message) throws IOException {
-        System.out.println("Message received: " + message);
-
-        String operation = message.get("operation");
-        String body = message.get("body");
-        JSONObject jsonBody = new JSONObject(body);
-
-        switch (operation) {
-            case "SAVE": {
-                postDocument(jsonBody);
-                break;
+    @Override
+    public void onMessageBatch(List<Message> messages) {
+        System.out.println("Message batch received: " + messages.size());
+
+        // Only the newest version of each plan in the batch matters
+        Map<String, IndexingMessage> latest = new LinkedHashMap<>();
+        Map<String, Message> latestMessages = new HashMap<>();
+        Map<Message, IndexingMessage> parsed = new LinkedHashMap<>();
+        for (Message amqpMessage : messages) {
+            IndexingMessage message;
+            try {
+                message = objectMapper.readValue(amqpMessage.getBody(), IndexingMessage.class);
+            } catch (IOException e) {
+                indexingPublisher.deadLetter(amqpMessage, "Unreadable message: " + e.getMessage());
+                continue;
             }
-            case "DELETE": {
-                deleteDocument(jsonBody);
-                break;
+            if (message.getPlanId() == null) {
+                indexingPublisher.deadLetter(amqpMessage, "Message has no planId");
+                continue;
             }
-        }
-    }
-
-    private boolean indexExists() throws IOException {
-        GetIndexRequest request = new GetIndexRequest(INDEX_NAME);
-        return client.indices().exists(request, RequestOptions.DEFAULT);
-    }
-
-    private void postDocument(JSONObject plan) throws IOException {
-        if (!indexExists()) {
-            createElasticIndex();
-        }
-
-        MapOfDocuments = new LinkedHashMap<>();
-        convertMapToDocumentIndex(plan, "", "plan");
-
-        for (Map.Entry<String, Map<String, Object>> entry : MapOfDocuments.entrySet()) {
-            String parentId = entry.getKey().split(":")[0];
-            String objectId = entry.getKey().split(":")[1];
-            IndexRequest request = new IndexRequest(INDEX_NAME);
-            request.id(objectId);
-            request.source(entry.getValue());
-            request.routing(parentId);
-            request.setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE);
-            IndexResponse indexResponse = client.index(request, RequestOptions.DEFAULT);
-            System.out.println("response id: " + indexResponse.getId() + " parent id: " + parentId);
-        }
-    }
-
-    private void deleteDocument(JSONObject jsonObject) throws IOException {
-        listOfKeys = new ArrayList<>();
-        convertToKeys(jsonObject);
-
-        for(String key : listOfKeys){
-            DeleteRequest request = new DeleteRequest(INDEX_NAME, key);
-            DeleteResponse deleteResponse = client.delete(
-                    request, RequestOptions.DEFAULT);
-            if (deleteResponse.getResult() == DocWriteResponse.Result.NOT_FOUND) {
-                System.out.println("Document " + key + " Not Found!!");
+            indexingMetrics.received(message.getPublishedAt());
+            parsed.put(amqpMessage, message);
+            IndexingMessage previous = latest.get(message.getPlanId());
+            if (previous == null || message.getVersion() >= previous.getVersion()) {
+                latest.put(message.getPlanId(), message);
+                latestMessages.put(message.getPlanId(), amqpMessage);
             }
         }
-    }
-
-    private Map<String, Map<String, Object>> convertToKeys(JSONObject jsonObject){
-
-        Map<String, Map<String, Object>> map = new HashMap<>();
-        Map<String, Object> valueMap = new HashMap<>();
-
-        for (String key : jsonObject.keySet()) {
-            String redisKey = jsonObject.get("objectId").toString();
-            Object value = jsonObject.get(key);
 
-            if (value instanceof JSONObject) {
-                convertToKeys((JSONObject) value);
-            } else if (value instanceof JSONArray) {
-                convertToKeysList((JSONArray) value);
-            } else {
-                valueMap.put(key, value);
-                map.put(redisKey, valueMap);
+        // Only indexing is retried here, with short pauses; longer waits are left to the broker. Plans that still
+        // fail are handed back once each, through the delayed retry queue or to the dead-letter queue, so the
+        // consumer thread never sleeps through an outage and no plan is republished twice for one delivery.
+        Map<String, String> failed = indexWithRetries(latest.values());
+        Set<String> handedOff = new HashSet<>();
+        try {
+            for (Map.Entry<String, String> failure : failed.entrySet()) {
+                indexingPublisher.retryOrDeadLetter(latestMessages.get(failure.getKey()), failure.getValue());
+                handedOff.add(failure.getKey());
             }
+        } catch (AmqpException e) {
+            // The whole batch is redelivered; plans handed off already are indexed again, which the change log makes harmless
+            System.out.println("RabbitMQ failed after handing off " + handedOff + ", batch will be redelivered: " + e.getMessage());
+            throw e;
         }
-
-        listOfKeys.add(jsonObject.get("objectId").toString());
-        return map;
+        parsed.forEach((amqpMessage, message) -> {
+            if (!failed.containsKey(message.getPlanId())) {
+                indexingMetrics.indexed(amqpMessage.getMessageProperties().getConsumerQueue(), message.getPublishedAt());
+            }
+        });
     }
 
-    private List<Object> convertToKeysList(JSONArray jsonArray) {
-        List<Object> list = new ArrayList<>();
-        for (Object value : jsonArray) {
-            if (value instanceof JSONArray) {
-                value = convertToKeysList((JSONArray) value);
-            } else if (value instanceof JSONObject) {
-                value = convertToKeys((JSONObject) value);
+    // An unavailable or overloaded cluster, or Redis, is not the messages' fault, so the batch is indexed again up to
+    // maxBatchAttempts times. After that, or on a non-retryable Elasticsearch error, every plan in it is failed.
+    private Map<String, String> indexWithRetries(Collection<IndexingMessage> messages) {
+        for (int attempt = 1; ; attempt++) {
+            Exception failure;
+            try {
+                return indexBatch(messages);
+            } catch (ElasticsearchStatusException e) {
+                if (!PlanIndexWriter.isRetryable(e.status())) return failAll(messages, e.toString());
+                failure = e;
+            } catch (IOException | JedisConnectionException e) {
+                failure = e;
+            }
+            System.out.println("Indexing batch failed on attempt " + attempt + ": " + failure.getMessage());
+            if (attempt >= maxBatchAttempts) {
+                return failAll(messages, "Batch still failing after " + maxBatchAttempts + " attempts: " + failure);
             }
-            list.add(value);
+            backoff(attempt);
         }
-        return list;
     }
 
+    private Map<String, String> failAll(Collection<IndexingMessage> messages, String error) {
+        Map<String, String> failed = new LinkedHashMap<>();
+        for (IndexingMessage message : messages) failed.put(message.getPlanId(), error);
+        return failed;
+    }
 
-    private Map<String, Map<String, Object>> convertMapToDocumentIndex (JSONObject jsonObject,
-                                                                        String parentId,
-                                                                        String objectName ) {
-
-        Map<String, Map<String, Object>> map = new HashMap<>();
-        Map<String, Object> valueMap = new HashMap<>();
-        Iterator<String> iterator = jsonObject.keys();
-
-        while (iterator.hasNext()){
-            String key = iterator.next();
-            String redisKey = jsonObject.get("objectType") + ":" + parentId;
-            Object value = jsonObject.get(key);
-
-            if (value instanceof JSONObject) {
-
-                convertMapToDocumentIndex((JSONObject) value, jsonObject.get("objectId").toString(), key);
-
-            } else if (value instanceof JSONArray) {
-
-                convertToList((JSONArray) value, jsonObject.get("objectId").toString(), key);
-
-            } else {
-                valueMap.put(key, value);
-                map.put(redisKey, valueMap);
+    // Indexes the plans and returns an error for each plan whose documents could not be built or were rejected.
+    // Each message applies whatever the change log holds for its plan, whatever its version: a newer message may
+    // never arrive if its publish failed after the version was recorded, and one that does finds little left to do.
+    private Map<String, String> indexBatch(Collection<IndexingMessage> messages) throws IOException {
+        indexManager.ensureIndex();
+        List<DocWriteRequest<?>> requests = new ArrayList<>();
+        Set<String> parentIds = new HashSet<>();
+        Map<String, String> planOfDocument = new HashMap<>();
+        Map<String, IndexChangeLog.Pending> indexed = new LinkedHashMap<>();
+        Map<String, String> failed = new LinkedHashMap<>();
+        long buildStart = System.nanoTime();
+        try {
+            List<String> targets = indexManager.writeTargets();
+            for (IndexingMessage message : messages) {
+                String planId = message.getPlanId();
+                IndexChangeLog.Pending pending = changeLog.pending(planId);
+                // An earlier message already indexed everything this one was sent for
+                if (pending.isEmpty()) continue;
+
+                List<DocWriteRequest<?>> planRequests = new ArrayList<>();
+                try {
+                    addRequests(pending, targets, planRequests, parentIds);
+                } catch (JedisConnectionException e) {
+                    throw e;
+                } catch (RuntimeException e) {
+                    failed.put(planId, e.toString());
+                    continue;
+                }
+                planRequests.forEach((request) -> planOfDocument.put(request.id(), planId));
+                requests.addAll(planRequests);
+                indexed.put(planId, pending);
             }
+        } catch (JedisConnectionException e) {
+            throw new IOException("Redis unavailable", e);
         }
-
-        Map<String, Object> temp = new HashMap<>();
-        if(objectName == "plan"){
-            valueMap.put("plan_join", objectName);
-        } else {
-            temp.put("name", objectName);
-            temp.put("parent", parentId);
-            valueMap.put("plan_join", temp);
+        indexingMetrics.recordBuild(System.nanoTime() - buildStart);
+
+        long writeStart = System.nanoTime();
+        List<DocWriteRequest<?>> rejected = indexWriter.write(requests);
+        indexingMetrics.recordWrite(System.nanoTime() - writeStart);
+        for (DocWriteRequest<?> request : rejected) {
+            String planId = planOfDocument.get(request.id());
+            indexed.remove(planId);
+            failed.putIfAbsent(planId, "Elasticsearch rejected document " + request.id());
         }
-
-        String id = parentId + ":" + jsonObject.get("objectId").toString();
-        System.out.println(valueMap);
-        MapOfDocuments.put(id, valueMap);
-
-
-        return map;
+        changeLog.acknowledge(new ArrayList<>(indexed.values()));
+        searchCache.invalidateWrites(requests, parentIds);
+        System.out.println("Indexed " + indexed.size() + " plans with " + requests.size() + " requests");
+        return failed;
     }
 
-    private List<Object> convertToList(JSONArray array, String parentId, String objectName) {
-        List<Object> list = new ArrayList<>();
-        for (int i = 0; i < array.length(); i++) {
-            Object value = array.get(i);
-            if (value instanceof JSONArray) {
-                value = convertToList((JSONArray) value, parentId, objectName);
-            } else if (value instanceof JSONObject) {
-                value = convertMapToDocumentIndex((JSONObject) value, parentId, objectName);
-            }
-            list.add(value);
+    private void backoff(int attempt) {
+        long delay = batchBackoff.toMillis() << Math.min(attempt - 1, 16);
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while backing off, batch will be redelivered"));
         }
-        return list;
     }
 
-    private void createElasticIndex() throws IOException {
-        CreateIndexRequest request = new CreateIndexRequest(INDEX_NAME);
-        request.settings(Settings.builder().put("index.number_of_shards", 1).put("index.number_of_replicas", 1));
-        XContentBuilder mapping = getMapping();
-        request.mapping(mapping);
-        CreateIndexResponse createIndexResponse = client.indices().create(request, RequestOptions.DEFAULT);
-
-        boolean acknowledged = createIndexResponse.isAcknowledged();
-        System.out.println("Index Creation:" + acknowledged);
-
-    }
-
-    private XContentBuilder getMapping() throws IOException {
-
-        XContentBuilder builder = XContentFactory.jsonBuilder();
-        builder.startObject();
-        {
-            builder.startObject("properties");
-            {
-                builder.startObject("plan");
-                {
-                    builder.startObject("properties");
-                    {
-                        builder.startObject("_org");
-                        {
-                            builder.field("type", "text");
-                        }
-                        builder.endObject();
-                        builder.startObject("objectId");
-                        {
-                            builder.field("type", "keyword");
-                        }
-                        builder.endObject();
-                        builder.startObject("objectType");
-                        {
-                            builder.field("type", "text");
-                        }
-                        builder.endObject();
-                        builder.startObject("planType");
-                        {
-                            builder.field("type", "text");
-                        }
-                        builder.endObject();
-                        builder.startObject("creationDate");
-                        {
-                            builder.field("type", "date");
-                            builder.field("format", "MM-dd-yyyy");
-                        }
-                        builder.endObject();
-                    }
-                    builder.endObject();
-                }
-                builder.endObject();
-                builder.startObject("planCostShares");
-                {
-                    builder.startObject("properties");
-                    {
-                        builder.startObject("copay");
-                        {
-                            builder.field("type", "long");
-                        }
-                        builder.endObject();
-                        builder.startObject("deductible");
-                        {
-                            builder.field("type", "long");
-                        }
-                        builder.endObject();
-                        builder.startObject("_org");
-                        {
-                            builder.field("type", "text");
-                        }
-                        builder.endObject();
-                        builder.startObject("objectId");
-                        {
-                            builder.field("type", "keyword");
-                        }
-                        builder.endObject();
-                        builder.startObject("objectType");
-                        {
-                            builder.field("type", "text");
-                        }
-                        builder.endObject();
-                    }
-                    builder.endObject();
-                }
-                builder.endObject();
-                builder.startObject("linkedPlanServices");
-                {
-                    builder.startObject("properties");
-                    {
-                        builder.startObject("_org");
-                        {
-                            builder.field("type", "text");
-                        }
-                        builder.endObject();
-                        builder.startObject("objectId");
-                        {
-                            builder.field("type", "keyword");
-                        }
-                        builder.endObject();
-                        builder.startObject("objectType");
-                        {
-                            builder.field("type", "text");
-                        }
-                        builder.endObject();
-                    }
-                    builder.endObject();
-                }
-                builder.endObject();
-                builder.startObject("linkedService");
-                {
-                    builder.startObject("properties");
-                    {
-                        builder.startObject("_org");
-                        {
-                            builder.field("type", "text");
-                        }
-                        builder.endObject();
-                        builder.startObject("name");
-                        {
-                            builder.field("type", "text");
-                        }
-                        builder.endObject();
-                        builder.startObject("objectId");
-                        {
-                            builder.field("type", "keyword");
-                        }
-                        builder.endObject();
-                        builder.startObject("objectType");
-                        {
-                            builder.field("type", "text");
-                        }
-                        builder.endObject();
-                    }
-                    builder.endObject();
+    private void addRequests(IndexChangeLog.Pending pending, List<String> targets, List<DocWriteRequest<?>> requests,
+                             Set<String> parentIds) {
+        Map<String, Object> plan = planService.readPlan("plan:" + pending.getPlanId());
+
+        Set<String> presentIds = new HashSet<>();
+        if (!plan.isEmpty()) {
+            for (PlanDocumentMapper.PlanDocument document : documentMapper.toDocuments(plan).values()) {
+                String objectId = document.getObjectId();
+                presentIds.add(objectId);
+                if (!pending.isUpsert(objectId)) continue;
+                if (!document.getParentId().isEmpty()) parentIds.add(document.getParentId());
+
+                for (String index : targets) {
+                    IndexRequest request = new IndexRequest(index);
+                    request.id(objectId);
+                    request.source(document.getSource());
+                    request.routing(document.getRouting());
+                    request.versionType(VersionType.EXTERNAL_GTE).version(pending.getVersion());
+                    requests.add(request);
                 }
-                builder.endObject();
-                builder.startObject("planserviceCostShares");
-                {
-                    builder.startObject("properties");
-                    {
-                        builder.startObject("copay");
-                        {
-                            builder.field("type", "long");
-                        }
-                        builder.endObject();
-                        builder.startObject("deductible");
-                        {
-                            builder.field("type", "long");
-                        }
-                        builder.endObject();
-                        builder.startObject("_org");
-                        {
-                            builder.field("type", "text");
-                        }
-                        builder.endObject();
-                        builder.startObject("objectId");
-                        {
-                            builder.field("type", "keyword");
-                        }
-                        builder.endObject();
-                        builder.startObject("objectType");
-                        {
-                            builder.field("type", "text");
-                        }
-                        builder.endObject();
-                    }
-                    builder.endObject();
-                }
-                builder.endObject();
-                builder.startObject("plan_join");
-                {
-                    builder.field("type", "join");
-                    builder.field("eager_global_ordinals", "true");
-                    builder.startObject("relations");
-                    {
-                        builder.array("plan", "planCostShares", "linkedPlanServices");
-                        builder.array("linkedPlanServices", "linkedService", "planserviceCostShares");
-                    }
-                    builder.endObject();
-                }
-                builder.endObject();
             }
-            builder.endObject();
         }
-        builder.endObject();
 
-        return builder;
+        List<String> deletes = new ArrayList<>();
+        for (String objectId : pending.getDeletes()) {
+            if (presentIds.contains(objectId)) continue;
 
+            deletes.add(objectId);
+            for (String index : targets) {
+                requests.add(new DeleteRequest(index, objectId).routing(pending.getPlanId())
+                        .versionType(VersionType.EXTERNAL_GTE).version(pending.getVersion()));
+            }
+        }
+        indexManager.recordDeletes(targets, pending.getPlanId(), deletes);
     }
-
-
-}
\ No newline at end of file
+}
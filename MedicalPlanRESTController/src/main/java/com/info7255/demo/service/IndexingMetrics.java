@@ -0,0 +1,95 @@
+package com.info7255.demo.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Where indexing time goes, from the controller publishing a change to the documents being written.
+// Search visibility additionally waits for the index refresh interval.
+@Component
+public class IndexingMetrics {
+    private final AmqpAdmin amqpAdmin;
+    private final Timer dwell;
+    private final Timer build;
+    private final Timer write;
+    private final Timer endToEnd;
+    // Publish time of the newest message indexed from each partition queue
+    private final Map<String, AtomicLong> lastIndexedPublishedAt = new ConcurrentHashMap<>();
+
+    public IndexingMetrics(MeterRegistry meterRegistry,
+                           AmqpAdmin amqpAdmin,
+                           @Value("${plan.indexing.partitions:4}") int partitions) {
+        this.amqpAdmin = amqpAdmin;
+        this.dwell = timer(meterRegistry, "indexing.queue.dwell", "Time from publish until a consumer receives the message");
+        this.build = timer(meterRegistry, "indexing.build", "Time to read plans from Redis and flatten them into documents, per batch");
+        this.write = timer(meterRegistry, "indexing.write", "Time to write a batch's documents to Elasticsearch, including retries");
+        this.endToEnd = timer(meterRegistry, "indexing.end.to.end", "Time from publish until the message's documents are written");
+
+        long startedAt = System.currentTimeMillis();
+        for (int partition = 0; partition < partitions; partition++) {
+            String queue = IndexingPublisher.partitionQueue(partition);
+            lastIndexedPublishedAt.put(queue, new AtomicLong(startedAt));
+            registerQueueGauges(meterRegistry, queue);
+            Gauge.builder("indexing.lag", this, (metrics) -> metrics.lagSeconds(queue))
+                    .description("Age of the newest indexed message while the queue still has a backlog, 0 when drained")
+                    .baseUnit("seconds")
+                    .tag("queue", queue)
+                    .register(meterRegistry);
+        }
+        registerQueueGauges(meterRegistry, IndexingPublisher.DEAD_LETTER_QUEUE);
+    }
+
+    public void received(long publishedAt) {
+        if (publishedAt > 0) dwell.record(System.currentTimeMillis() - publishedAt, TimeUnit.MILLISECONDS);
+    }
+
+    public void recordBuild(long nanos) {
+        build.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordWrite(long nanos) {
+        write.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void indexed(String queue, long publishedAt) {
+        if (publishedAt <= 0) return;
+        endToEnd.record(System.currentTimeMillis() - publishedAt, TimeUnit.MILLISECONDS);
+        AtomicLong last = lastIndexedPublishedAt.get(queue);
+        if (last != null) last.accumulateAndGet(publishedAt, Math::max);
+    }
+
+    private double lagSeconds(String queue) {
+        if (queueDepth(queue) <= 0) return 0;
+        return (System.currentTimeMillis() - lastIndexedPublishedAt.get(queue).get()) / 1000.0;
+    }
+
+    private double queueDepth(String queue) {
+        Properties properties = amqpAdmin.getQueueProperties(queue);
+        if (properties == null) return Double.NaN;
+        return ((Number) properties.get(RabbitAdmin.QUEUE_MESSAGE_COUNT)).doubleValue();
+    }
+
+    private void registerQueueGauges(MeterRegistry meterRegistry, String queue) {
+        Gauge.builder("indexing.queue.depth", this, (metrics) -> metrics.queueDepth(queue))
+                .description("Messages ready in the queue")
+                .tag("queue", queue)
+                .register(meterRegistry);
+    }
+
+    private static Timer timer(MeterRegistry meterRegistry, String name, String description) {
+        return Timer.builder(name)
+                .description(description)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+}
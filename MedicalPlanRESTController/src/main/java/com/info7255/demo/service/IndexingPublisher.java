@@ -0,0 +1,116 @@
+package com.info7255.demo.service;
+
+import com.info7255.demo.DemoApplication;
+import com.info7255.demo.model.IndexingMessage;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+// Routes indexing messages to one partition queue per plan, so a plan's messages are consumed in order
+@Service
+public class IndexingPublisher {
+    public static final String DEAD_LETTER_QUEUE = DemoApplication.queueName + ".dlq";
+    // Failed messages wait here until their expiration, then are dead-lettered back to the topic exchange under
+    // their original routing key
+    public static final String RETRY_EXCHANGE = DemoApplication.queueName + ".retry";
+    public static final String RETRY_QUEUE = DemoApplication.queueName + ".retry";
+    private static final String ATTEMPTS_HEADER = "x-index-attempts";
+    private static final String ERROR_HEADER = "x-index-error";
+
+    private final RabbitTemplate template;
+    private final IndexChangeLog changeLog;
+    private final int partitions;
+    private final int maxAttempts;
+    private final Duration maxBackoff;
+
+    public IndexingPublisher(RabbitTemplate template,
+                             IndexChangeLog changeLog,
+                             @Value("${plan.indexing.partitions:4}") int partitions,
+                             @Value("${plan.indexing.max-attempts:10}") int maxAttempts,
+                             @Value("${plan.indexing.max-backoff:30s}") Duration maxBackoff) {
+        this.template = template;
+        this.changeLog = changeLog;
+        this.partitions = partitions;
+        this.maxAttempts = maxAttempts;
+        this.maxBackoff = maxBackoff;
+    }
+
+    public static String partitionQueue(int partition) {
+        return DemoApplication.queueName + "." + partition;
+    }
+
+    public static String routingKey(String planId, int partitions) {
+        return partitionQueue(Math.floorMod(planId.hashCode(), partitions));
+    }
+
+    private String routingKey(String planId) {
+        return routingKey(planId, partitions);
+    }
+
+    // Every document of the plan needs indexing
+    public void publishSave(String planId) {
+        publish("SAVE", planId, null, List.of());
+    }
+
+    // Publishes a whole-plan save for each plan over a single channel
+    public void publishSaves(Collection<String> planIds) {
+        if (planIds.isEmpty()) return;
+        Map<String, Long> versions = changeLog.recordAll(planIds);
+        long publishedAt = System.currentTimeMillis();
+        template.invoke((operations) -> {
+            versions.forEach((planId, version) -> operations.convertAndSend(DemoApplication.topicExchangeName,
+                    routingKey(planId), new IndexingMessage("SAVE", planId, version, publishedAt)));
+            return null;
+        });
+        System.out.println("Sent " + versions.size() + " SAVE messages");
+    }
+
+    public void publishDelete(String planId, Collection<String> deletes) {
+        publish("DELETE", planId, List.of(), deletes);
+    }
+
+    public void publishUpdate(String planId, Collection<String> upserts, Collection<String> deletes) {
+        publish("UPDATE", planId, upserts, deletes);
+    }
+
+    // Puts a message that failed to index back on its partition queue after a pause that doubles with each attempt,
+    // up to maxBackoff, or on the dead-letter queue once it has failed maxAttempts times
+    public void retryOrDeadLetter(Message message, String error) {
+        MessageProperties properties = message.getMessageProperties();
+        Integer previous = properties.getHeader(ATTEMPTS_HEADER);
+        int attempts = previous == null ? 1 : previous + 1;
+        properties.setHeader(ATTEMPTS_HEADER, attempts);
+        properties.setHeader(ERROR_HEADER, error);
+
+        if (attempts >= maxAttempts) {
+            deadLetter(message, error);
+        } else {
+            long delay = Math.min(maxBackoff.toMillis(), 1000L << Math.min(attempts - 1, 16));
+            properties.setExpiration(String.valueOf(delay));
+            template.send(RETRY_EXCHANGE, properties.getReceivedRoutingKey(), message);
+        }
+    }
+
+    public void deadLetter(Message message, String error) {
+        message.getMessageProperties().setHeader(ERROR_HEADER, error);
+        System.out.println("Dead-lettering " + new String(message.getBody(), StandardCharsets.UTF_8) + ": " + error);
+        template.send(DEAD_LETTER_QUEUE, message);
+    }
+
+    private void publish(String operation, String planId, Collection<String> upserts, Collection<String> deletes) {
+        long version = changeLog.record(planId, upserts, deletes);
+        IndexingMessage message = new IndexingMessage(operation, planId, version, System.currentTimeMillis());
+        String routingKey = routingKey(planId);
+
+        System.out.println("Sending message to " + routingKey + ": " + message);
+        template.convertAndSend(DemoApplication.topicExchangeName, routingKey, message);
+    }
+}
@@ -0,0 +1,241 @@
+package com.info7255.demo.service;
+
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.index.VersionType;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Rebuilds the plan index from Redis: SCANs plan keys page by page and indexes each page on a bounded worker pool.
+// The cursor of the last fully indexed page is kept in Redis, so a stopped or crashed run resumes where it left off.
+@Service
+public class PlanBackfill {
+    private static final String CURSOR_KEY = "backfill:cursor";
+
+    private final JedisPool jedisPool;
+    private final PlanService planService;
+    private final PlanDocumentMapper documentMapper;
+    private final PlanIndexManager indexManager;
+    private final PlanIndexWriter indexWriter;
+    private final IndexChangeLog changeLog;
+    private final SearchCache searchCache;
+    private final int threads;
+    private final int scanCount;
+    private final int maxDocsPerSecond;
+
+    private final AtomicLong scannedPlans = new AtomicLong();
+    private final AtomicLong indexedDocuments = new AtomicLong();
+    private final AtomicLong failedPlans = new AtomicLong();
+    private final AtomicLong rejectedDocuments = new AtomicLong();
+    private final AtomicLong conflictedDocuments = new AtomicLong();
+    private volatile String state = "IDLE";
+    private volatile String cursor = ScanParams.SCAN_POINTER_START;
+    private volatile String error;
+    private volatile boolean stopRequested;
+    private volatile long startedAt;
+    private long nextPermitAt;
+
+    public PlanBackfill(JedisPool jedisPool,
+                        PlanService planService,
+                        PlanDocumentMapper documentMapper,
+                        PlanIndexManager indexManager,
+                        PlanIndexWriter indexWriter,
+                        IndexChangeLog changeLog,
+                        SearchCache searchCache,
+                        @Value("${plan.backfill.threads:4}") int threads,
+                        @Value("${plan.backfill.scan-count:100}") int scanCount,
+                        @Value("${plan.backfill.max-docs-per-second:2000}") int maxDocsPerSecond) {
+        this.jedisPool = jedisPool;
+        this.planService = planService;
+        this.documentMapper = documentMapper;
+        this.indexManager = indexManager;
+        this.indexWriter = indexWriter;
+        this.changeLog = changeLog;
+        this.searchCache = searchCache;
+        this.threads = threads;
+        this.scanCount = scanCount;
+        this.maxDocsPerSecond = maxDocsPerSecond;
+    }
+
+    // Starts a run in the background, resuming from the saved cursor unless restart is set
+    public synchronized Map<String, Object> start(boolean restart) {
+        if ("RUNNING".equals(state)) return getStatus();
+
+        try (Jedis jedis = jedisPool.getResource()) {
+            if (restart) jedis.del(CURSOR_KEY);
+            String saved = jedis.get(CURSOR_KEY);
+            cursor = saved == null ? ScanParams.SCAN_POINTER_START : saved;
+        }
+        scannedPlans.set(0);
+        indexedDocuments.set(0);
+        failedPlans.set(0);
+        rejectedDocuments.set(0);
+        conflictedDocuments.set(0);
+        error = null;
+        stopRequested = false;
+        startedAt = System.currentTimeMillis();
+        state = "RUNNING";
+
+        Thread coordinator = new Thread(this::run, "plan-backfill");
+        coordinator.setDaemon(true);
+        coordinator.start();
+        return getStatus();
+    }
+
+    public Map<String, Object> stop() {
+        stopRequested = true;
+        return getStatus();
+    }
+
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("state", state);
+        status.put("cursor", cursor);
+        status.put("scannedPlans", scannedPlans.get());
+        status.put("indexedDocuments", indexedDocuments.get());
+        status.put("failedPlans", failedPlans.get());
+        status.put("rejectedDocuments", rejectedDocuments.get());
+        status.put("conflictedDocuments", conflictedDocuments.get());
+        long elapsed = System.currentTimeMillis() - startedAt;
+        status.put("docsPerSecond", startedAt == 0 || elapsed == 0 ? 0 : indexedDocuments.get() * 1000 / elapsed);
+        if (error != null) status.put("error", error);
+        return status;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        stopRequested = true;
+    }
+
+    private void run() {
+        // Bounded queue with caller-runs: the scanning thread indexes a page itself rather than scanning ahead
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+        // Pages in scan order, so the saved cursor never skips past a page that is still being indexed
+        Deque<Map.Entry<String, Future<?>>> inFlight = new ArrayDeque<>();
+        ScanParams params = new ScanParams().match("plan:*").count(scanCount);
+        try {
+            indexManager.ensureIndex();
+            String scanCursor = cursor;
+            do {
+                ScanResult<String> page;
+                try (Jedis jedis = jedisPool.getResource()) {
+                    page = jedis.scan(scanCursor, params);
+                }
+                List<String> planKeys = new ArrayList<>();
+                for (String key : page.getResult()) {
+                    if (key.split(":").length == 2) planKeys.add(key);
+                }
+                scanCursor = page.getCursor();
+                inFlight.add(Map.entry(scanCursor, workers.submit(() -> indexPage(planKeys))));
+                saveCompletedCursor(inFlight, false);
+            } while (!scanCursor.equals(ScanParams.SCAN_POINTER_START) && !stopRequested);
+
+            saveCompletedCursor(inFlight, true);
+            if (stopRequested) {
+                state = "STOPPED";
+            } else {
+                try (Jedis jedis = jedisPool.getResource()) {
+                    jedis.del(CURSOR_KEY);
+                }
+                state = "COMPLETED";
+            }
+        } catch (Exception e) {
+            error = e.getMessage();
+            state = "FAILED";
+        } finally {
+            workers.shutdownNow();
+            System.out.println("Backfill " + state + ": " + getStatus());
+        }
+    }
+
+    private void saveCompletedCursor(Deque<Map.Entry<String, Future<?>>> inFlight, boolean waitAll)
+            throws InterruptedException, ExecutionException {
+        String completed = null;
+        while (!inFlight.isEmpty() && (waitAll || inFlight.peek().getValue().isDone())) {
+            Map.Entry<String, Future<?>> page = inFlight.poll();
+            page.getValue().get();
+            completed = page.getKey();
+        }
+        if (completed == null) return;
+
+        cursor = completed;
+        try (Jedis jedis = jedisPool.getResource()) {
+            jedis.set(CURSOR_KEY, completed);
+        }
+    }
+
+    private void indexPage(List<String> planKeys) {
+        List<DocWriteRequest<?>> requests = new ArrayList<>();
+        List<String> targets = indexManager.writeTargets();
+        Set<String> parentIds = new HashSet<>();
+        // Documents carry their plan's change-log version, so a plan the consumers indexed after this page was
+        // read is not overwritten with the older state; Elasticsearch answers those writes with a conflict, counted
+        // apart from the documents actually indexed. Plans never published are seeded at version 1.
+        List<String> planIds = new ArrayList<>();
+        for (String planKey : planKeys) planIds.add(planKey.split(":")[1]);
+        Map<String, Long> versions = changeLog.seededVersions(planIds);
+        for (String planKey : planKeys) {
+            scannedPlans.incrementAndGet();
+            long version = versions.get(planKey.split(":")[1]);
+            Map<String, Object> plan = planService.readPlan(planKey);
+            if (plan.isEmpty()) continue;
+
+            for (PlanDocumentMapper.PlanDocument document : documentMapper.toDocuments(plan).values()) {
+                if (!document.getParentId().isEmpty()) parentIds.add(document.getParentId());
+                for (String index : targets) {
+                    IndexRequest request = new IndexRequest(index);
+                    request.id(document.getObjectId());
+                    request.source(document.getSource());
+                    request.routing(document.getRouting());
+                    request.versionType(VersionType.EXTERNAL_GTE).version(version);
+                    requests.add(request);
+                }
+            }
+        }
+        if (requests.isEmpty()) return;
+
+        throttle(requests.size());
+        try {
+            List<DocWriteRequest<?>> conflicted = new ArrayList<>();
+            List<DocWriteRequest<?>> rejected = indexWriter.write(requests, conflicted);
+            searchCache.invalidateWrites(requests, parentIds);
+            indexedDocuments.addAndGet(requests.size() - rejected.size() - conflicted.size());
+            rejectedDocuments.addAndGet(rejected.size());
+            conflictedDocuments.addAndGet(conflicted.size());
+        } catch (IOException e) {
+            failedPlans.addAndGet(planKeys.size());
+            throw new CompletionException(e);
+        }
+    }
+
+    // Spaces bulk requests out so all workers together stay under maxDocsPerSecond
+    private void throttle(int documents) {
+        if (maxDocsPerSecond <= 0) return;
+
+        long waitMillis;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            long permitAt = Math.max(nextPermitAt, now);
+            nextPermitAt = permitAt + documents * 1000L / maxDocsPerSecond;
+            waitMillis = permitAt - now;
+        }
+        if (waitMillis <= 0) return;
+        try {
+            Thread.sleep(waitMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Backfill interrupted");
+        }
+    }
+}
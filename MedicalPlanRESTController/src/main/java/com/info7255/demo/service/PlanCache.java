@@ -0,0 +1,92 @@
+package com.info7255.demo.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Function;
+
+@Component
+public class PlanCache implements MessageListener {
+    // Every node publishes the keys it writes here, comma-separated, so other nodes drop their copies
+    public static final String INVALIDATION_CHANNEL = "plan-invalidation";
+
+    private final JedisPool jedisPool;
+    private final boolean enabled;
+    private final Cache<String, Entry> cache;
+
+    public PlanCache(JedisPool jedisPool,
+                     MeterRegistry meterRegistry,
+                     RedisMessageListenerContainer listenerContainer,
+                     @Value("${plan.cache.enabled:true}") boolean enabled,
+                     @Value("${plan.cache.maximum-size:10000}") long maximumSize,
+                     @Value("${plan.cache.ttl:60s}") Duration ttl) {
+        this.jedisPool = jedisPool;
+        this.enabled = enabled;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "plans");
+        listenerContainer.addMessageListener(this, new ChannelTopic(INVALIDATION_CHANNEL));
+    }
+
+    public Entry get(String key, Function<String, Entry> loader) {
+        if (!enabled) return loader.apply(key);
+        return cache.get(key, loader);
+    }
+
+    public void invalidate(String key) {
+        if (!enabled) return;
+        cache.invalidate(key);
+        try (Jedis jedis = jedisPool.getResource()) {
+            jedis.publish(INVALIDATION_CHANNEL, key);
+        }
+    }
+
+    public void invalidateAll(Collection<String> keys) {
+        if (!enabled || keys.isEmpty()) return;
+        cache.invalidateAll(keys);
+        try (Jedis jedis = jedisPool.getResource()) {
+            jedis.publish(INVALIDATION_CHANNEL, String.join(",", keys));
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        cache.invalidateAll(Arrays.asList(new String(message.getBody(), StandardCharsets.UTF_8).split(",")));
+    }
+
+    public static class Entry {
+        private final Map<String, Object> plan;
+        private final String eTag;
+
+        public Entry(Map<String, Object> plan, String eTag) {
+            this.plan = plan;
+            this.eTag = eTag;
+        }
+
+        public Map<String, Object> getPlan() {
+            return plan;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.info7255.demo.service;
+
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Flattens a plan tree into the parent/child documents stored in the plan index
+@Component
+public class PlanDocumentMapper {
+
+    // Documents keyed by objectId, in tree order. Plans are walked as the plain maps PlanService reads and
+    // caches, so indexing never converts them back into a JSON tree first.
+    public LinkedHashMap<String, PlanDocument> toDocuments(Map<String, Object> plan) {
+        LinkedHashMap<String, PlanDocument> documents = new LinkedHashMap<>();
+        convertMapToDocumentIndex(plan, "", plan.get("objectId").toString(), "plan", documents);
+        return documents;
+    }
+
+    public List<String> collectIds(Map<String, Object> plan) {
+        List<String> ids = new ArrayList<>();
+        convertToKeys(plan, ids);
+        return ids;
+    }
+
+    // Ids of documents that are new or whose content or parent changed, followed by ids that are gone
+    public Diff diff(Map<String, PlanDocument> oldDocuments, Map<String, PlanDocument> newDocuments) {
+        Diff diff = new Diff();
+        for (PlanDocument document : newDocuments.values()) {
+            PlanDocument previous = oldDocuments.get(document.getObjectId());
+            if (previous == null || !previous.getContentHash().equals(document.getContentHash())) {
+                diff.upserts.add(document.getObjectId());
+            }
+        }
+        for (String objectId : oldDocuments.keySet()) {
+            if (!newDocuments.containsKey(objectId)) diff.deletes.add(objectId);
+        }
+        return diff;
+    }
+
+    private void convertMapToDocumentIndex(Map<String, Object> object,
+                                           String parentId,
+                                           String planId,
+                                           String objectName,
+                                           Map<String, PlanDocument> documents) {
+        Map<String, Object> valueMap = new HashMap<>();
+        String objectId = object.get("objectId").toString();
+
+        for (Map.Entry<String, Object> entry : object.entrySet()) {
+            Object value = entry.getValue();
+
+            if (value instanceof Map) {
+                convertMapToDocumentIndex((Map<String, Object>) value, objectId, planId, entry.getKey(), documents);
+            } else if (value instanceof List) {
+                convertToList((List<Object>) value, objectId, planId, entry.getKey(), documents);
+            } else if (value != null) {
+                valueMap.put(entry.getKey(), value);
+            }
+        }
+
+        if ("plan".equals(objectName)) {
+            valueMap.put("plan_join", objectName);
+        } else {
+            Map<String, Object> temp = new HashMap<>();
+            temp.put("name", objectName);
+            temp.put("parent", parentId);
+            valueMap.put("plan_join", temp);
+        }
+
+        documents.put(objectId, new PlanDocument(objectId, parentId, planId, valueMap));
+    }
+
+    private void convertToList(List<Object> list, String parentId, String planId, String objectName, Map<String, PlanDocument> documents) {
+        for (Object value : list) {
+            if (value instanceof List) {
+                convertToList((List<Object>) value, parentId, planId, objectName, documents);
+            } else if (value instanceof Map) {
+                convertMapToDocumentIndex((Map<String, Object>) value, parentId, planId, objectName, documents);
+            }
+        }
+    }
+
+    private void convertToKeys(Map<String, Object> object, List<String> ids) {
+        for (Object value : object.values()) {
+            if (value instanceof Map) {
+                convertToKeys((Map<String, Object>) value, ids);
+            } else if (value instanceof List) {
+                convertToKeysList((List<Object>) value, ids);
+            }
+        }
+        ids.add(object.get("objectId").toString());
+    }
+
+    private void convertToKeysList(List<Object> list, List<String> ids) {
+        for (Object value : list) {
+            if (value instanceof List) {
+                convertToKeysList((List<Object>) value, ids);
+            } else if (value instanceof Map) {
+                convertToKeys((Map<String, Object>) value, ids);
+            }
+        }
+    }
+
+    public static class PlanDocument {
+        private final String objectId;
+        private final String parentId;
+        private final String planId;
+        private final Map<String, Object> source;
+        private String contentHash;
+
+        public PlanDocument(String objectId, String parentId, String planId, Map<String, Object> source) {
+            this.objectId = objectId;
+            this.parentId = parentId;
+            this.planId = planId;
+            this.source = source;
+        }
+
+        public String getObjectId() {
+            return objectId;
+        }
+
+        public String getParentId() {
+            return parentId;
+        }
+
+        // Every document of a plan is routed by the plan's objectId, so the whole tree shares one shard
+        // however deep it is and has_child/has_parent joins always find their other side
+        public String getRouting() {
+            return planId;
+        }
+
+        public Map<String, Object> getSource() {
+            return source;
+        }
+
+        // Stored plans decode numbers as Long/BigDecimal while request bodies use Integer/Double,
+        // so hash a sorted string form rather than comparing the maps themselves
+        public String getContentHash() {
+            if (contentHash == null) {
+                StringBuilder builder = new StringBuilder(parentId);
+                for (Map.Entry<String, Object> entry : new TreeMap<>(source).entrySet()) {
+                    Object value = entry.getValue() instanceof Map
+                            ? new TreeMap<>((Map<?, ?>) entry.getValue())
+                            : entry.getValue();
+                    builder.append('\u0000').append(entry.getKey()).append('=').append(value);
+                }
+                contentHash = DigestUtils.md5DigestAsHex(builder.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            return contentHash;
+        }
+    }
+
+    public static class Diff {
+        private final List<String> upserts = new ArrayList<>();
+        private final List<String> deletes = new ArrayList<>();
+
+        public List<String> getUpserts() {
+            return upserts;
+        }
+
+        public List<String> getDeletes() {
+            return deletes;
+        }
+
+        public boolean isEmpty() {
+            return upserts.isEmpty() && deletes.isEmpty();
+        }
+    }
+}
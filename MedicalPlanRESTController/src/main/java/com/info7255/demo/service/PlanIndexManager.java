@@ -0,0 +1,356 @@
+package com.info7255.demo.service;
+
+import org.elasticsearch.action.admin.indices.alias.Alias;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.client.GetAliasesResponse;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.client.indices.CreateIndexResponse;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.client.tasks.TaskSubmissionResponse;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.reindex.ReindexRequest;
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Transaction;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.*;
+
+@Component
+public class PlanIndexManager {
+    // Searches and writes always go through the alias; the physical index behind it is versioned
+    public static final String ALIAS = "plan-index";
+    // Migration state is shared through Redis, so consumers on every node dual-write while one node copies
+    static final String MIGRATION_KEY = "index-migration";
+    // Hash of document id to plan id, so replayed deletes are routed to the shard that holds the document
+    static final String MIGRATION_DELETES_KEY = "index-migration:deletes";
+
+    private final RestHighLevelClient client;
+    private final JedisPool jedisPool;
+    private final int version;
+    private final int shards;
+    private final int replicas;
+    private final String refreshInterval;
+    private final Duration migrationGracePeriod;
+    private volatile String currentIndex;
+
+    public PlanIndexManager(RestHighLevelClient client,
+                            JedisPool jedisPool,
+                            @Value("${plan.index.version:3}") int version,
+                            @Value("${plan.index.shards:1}") int shards,
+                            @Value("${plan.index.replicas:1}") int replicas,
+                            @Value("${plan.index.refresh-interval:1s}") String refreshInterval,
+                            @Value("${plan.index.migration.grace-period:5s}") Duration migrationGracePeriod) {
+        this.client = client;
+        this.jedisPool = jedisPool;
+        this.version = version;
+        this.shards = shards;
+        this.replicas = replicas;
+        this.refreshInterval = refreshInterval;
+        this.migrationGracePeriod = migrationGracePeriod;
+    }
+
+    @PostConstruct
+    public void bootstrap() {
+        try {
+            ensureIndex();
+        } catch (IOException e) {
+            System.out.println("Elasticsearch not reachable at startup, index will be verified on first write: " + e.getMessage());
+        }
+    }
+
+    // Verifies or creates the index once; afterwards this is a field read instead of an HTTP round trip
+    public synchronized void ensureIndex() throws IOException {
+        if (currentIndex != null) return;
+
+        GetAliasesRequest aliasRequest = new GetAliasesRequest(ALIAS);
+        if (client.indices().existsAlias(aliasRequest, RequestOptions.DEFAULT)) {
+            GetAliasesResponse aliases = client.indices().getAlias(aliasRequest, RequestOptions.DEFAULT);
+            currentIndex = aliases.getAliases().keySet().iterator().next();
+            if (!currentIndex.equals(indexName(version))) {
+                System.out.println("Alias " + ALIAS + " points to " + currentIndex + ", configured version is " + version
+                        + "; run POST /admin/index/_migrate to roll it out");
+            }
+        } else if (client.indices().exists(new GetIndexRequest(ALIAS), RequestOptions.DEFAULT)) {
+            currentIndex = ALIAS;
+            System.out.println("Using unversioned index " + ALIAS + "; run POST /admin/index/_migrate to move it behind an alias");
+        } else {
+            createIndex(indexName(version), true);
+            currentIndex = indexName(version);
+        }
+    }
+
+    // Every index a write has to reach: the alias, plus the new index while a migration is copying into it.
+    // Read once per batch, so a node picks up a migration started elsewhere on its next batch.
+    public List<String> writeTargets() {
+        String target;
+        try (Jedis jedis = jedisPool.getResource()) {
+            target = jedis.hget(MIGRATION_KEY, "target");
+        }
+        return target == null ? List.of(ALIAS) : List.of(ALIAS, target);
+    }
+
+    // Deletes written while a migration runs are replayed on the new index, routed by their plan, once the copy is done
+    public void recordDeletes(List<String> targets, String planId, Collection<String> ids) {
+        if (targets.size() < 2 || ids.isEmpty()) return;
+        Map<String, String> routing = new HashMap<>();
+        ids.forEach((id) -> routing.put(id, planId));
+        try (Jedis jedis = jedisPool.getResource()) {
+            jedis.hset(MIGRATION_DELETES_KEY, routing);
+        }
+    }
+
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("alias", ALIAS);
+        status.put("index", currentIndex);
+        status.put("configuredVersion", version);
+        status.put("migration", getMigrationStatus());
+        status.put("indices", getIndexSizes());
+        return status;
+    }
+
+    public Map<String, Object> getMigrationStatus() {
+        try (Jedis jedis = jedisPool.getResource()) {
+            Map<String, Object> status = new TreeMap<>(jedis.hgetAll(MIGRATION_KEY));
+            if (status.isEmpty()) status.put("state", "IDLE");
+            return status;
+        }
+    }
+
+    // Starts copying into a new versioned index in the background; GET /admin/index/_migrate shows progress.
+    // Writes go to both indices from the moment the target is published in Redis, then the alias is swapped atomically.
+    public synchronized Map<String, Object> migrate(int targetVersion) throws IOException {
+        // Another node may have swapped the alias since this one last looked
+        currentIndex = null;
+        ensureIndex();
+        String target = indexName(targetVersion);
+        if (target.equals(currentIndex)) return getMigrationStatus();
+
+        try (Jedis jedis = jedisPool.getResource()) {
+            if (jedis.hsetnx(MIGRATION_KEY, "claimedBy", target) == 0) return getMigrationStatus();
+            jedis.hdel(MIGRATION_KEY, "error", "finishedAt");
+            jedis.del(MIGRATION_DELETES_KEY);
+        }
+        String source = currentIndex;
+        try {
+            // The target must exist with its mapping before anyone writes to it, or it would be auto-created
+            createIndex(target, false);
+        } catch (IOException | RuntimeException e) {
+            finishMigration(target, "FAILED", e.toString());
+            throw e;
+        }
+        try (Jedis jedis = jedisPool.getResource()) {
+            jedis.hset(MIGRATION_KEY, Map.of("target", target, "source", source, "state", "RUNNING",
+                    "startedAt", String.valueOf(System.currentTimeMillis())));
+        }
+
+        Thread worker = new Thread(() -> runMigration(source, target), "index-migration");
+        worker.setDaemon(true);
+        worker.start();
+        return getMigrationStatus();
+    }
+
+    private void runMigration(String source, String target) {
+        try {
+            // Consumers read the write targets once per batch, so batches already in flight finish first
+            Thread.sleep(migrationGracePeriod.toMillis());
+
+            ReindexRequest reindexRequest = new ReindexRequest();
+            reindexRequest.setSourceIndices(ALIAS);
+            reindexRequest.setDestIndex(target);
+            // Documents already dual-written into the target are newer than the copy, so keep them
+            reindexRequest.setDestOpType("create");
+            reindexRequest.setConflicts("proceed");
+            reindexRequest.setRefresh(true);
+            awaitTask(client.submitReindexTask(reindexRequest, RequestOptions.DEFAULT));
+
+            // The copy may have resurrected documents deleted while it was running
+            Map<String, String> deleted;
+            try (Jedis jedis = jedisPool.getResource()) {
+                deleted = jedis.hgetAll(MIGRATION_DELETES_KEY);
+            }
+            for (Map.Entry<String, String> document : deleted.entrySet()) {
+                client.delete(new DeleteRequest(target, document.getKey()).routing(document.getValue()), RequestOptions.DEFAULT);
+            }
+
+            IndicesAliasesRequest aliasesRequest = new IndicesAliasesRequest();
+            if (source.equals(ALIAS)) {
+                aliasesRequest.addAliasAction(IndicesAliasesRequest.AliasActions.removeIndex().index(ALIAS));
+            } else {
+                aliasesRequest.addAliasAction(IndicesAliasesRequest.AliasActions.remove().index(source).alias(ALIAS));
+            }
+            aliasesRequest.addAliasAction(IndicesAliasesRequest.AliasActions.add().index(target).alias(ALIAS));
+            client.indices().updateAliases(aliasesRequest, RequestOptions.DEFAULT);
+
+            System.out.println("Alias " + ALIAS + " swapped from " + source + " to " + target);
+            currentIndex = target;
+            finishMigration(target, "COMPLETED", null);
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+            System.out.println("Migration to " + target + " failed, alias left on " + source + ": " + e);
+            // Drop the partial copy so the migration can simply be started again
+            try {
+                client.indices().delete(new DeleteIndexRequest(target), RequestOptions.DEFAULT);
+            } catch (Exception cleanup) {
+                System.out.println("Could not delete " + target + ": " + cleanup.getMessage());
+            }
+            finishMigration(target, "FAILED", e.toString());
+        }
+    }
+
+    private void finishMigration(String target, String state, String error) {
+        try (Jedis jedis = jedisPool.getResource()) {
+            Transaction transaction = jedis.multi();
+            transaction.hdel(MIGRATION_KEY, "target", "claimedBy");
+            transaction.hset(MIGRATION_KEY, "lastTarget", target);
+            transaction.hset(MIGRATION_KEY, "state", state);
+            transaction.hset(MIGRATION_KEY, "finishedAt", String.valueOf(System.currentTimeMillis()));
+            if (error != null) transaction.hset(MIGRATION_KEY, "error", error);
+            transaction.del(MIGRATION_DELETES_KEY);
+            transaction.exec();
+        }
+    }
+
+    // Polls the task until it completes, then fails on a task error or on any document the copy could not write,
+    // so a partial copy never gets the alias
+    private void awaitTask(TaskSubmissionResponse submission) throws IOException {
+        Request request = new Request("GET", "/_tasks/" + submission.getTask());
+        while (true) {
+            Response response = client.getLowLevelClient().performRequest(request);
+            JSONObject task = new JSONObject(EntityUtils.toString(response.getEntity()));
+            if (task.optBoolean("completed")) {
+                if (task.has("error")) {
+                    throw new IOException("Reindex task " + submission.getTask() + " failed: " + task.getJSONObject("error").optString("reason"));
+                }
+                JSONObject result = task.optJSONObject("response");
+                if (result != null && result.optJSONArray("failures") != null && !result.getJSONArray("failures").isEmpty()) {
+                    throw new IOException("Reindex task " + submission.getTask() + " could not copy "
+                            + result.getJSONArray("failures").length() + " documents, first: " + result.getJSONArray("failures").get(0));
+                }
+                return;
+            }
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for reindex task " + submission.getTask());
+            }
+        }
+    }
+
+    // Document count and store size of every plan index, to compare versions before and after a migration
+    private Map<String, Object> getIndexSizes() {
+        Map<String, Object> sizes = new TreeMap<>();
+        try {
+            Response response = client.getLowLevelClient().performRequest(new Request("GET", "/" + ALIAS + "*/_stats/docs,store"));
+            JSONObject indices = new JSONObject(EntityUtils.toString(response.getEntity())).getJSONObject("indices");
+            for (String index : indices.keySet()) {
+                JSONObject primaries = indices.getJSONObject(index).getJSONObject("primaries");
+                Map<String, Object> size = new LinkedHashMap<>();
+                size.put("docs", primaries.getJSONObject("docs").getLong("count"));
+                size.put("storeBytes", primaries.getJSONObject("store").getLong("size_in_bytes"));
+                sizes.put(index, size);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not read index stats: " + e.getMessage());
+        }
+        return sizes;
+    }
+
+    private String indexName(int indexVersion) {
+        return ALIAS + "-v" + indexVersion;
+    }
+
+    private void createIndex(String name, boolean withAlias) throws IOException {
+        CreateIndexRequest request = new CreateIndexRequest(name);
+        request.settings(Settings.builder()
+                .put("index.number_of_shards", shards)
+                .put("index.number_of_replicas", replicas)
+                .put("index.refresh_interval", refreshInterval));
+        XContentBuilder mapping = getMapping();
+        request.mapping(mapping);
+        if (withAlias) request.alias(new Alias(ALIAS));
+        CreateIndexResponse createIndexResponse = client.indices().create(request, RequestOptions.DEFAULT);
+
+        boolean acknowledged = createIndexResponse.isAcknowledged();
+        System.out.println("Index Creation " + name + ":" + acknowledged);
+    }
+
+    // Documents are flat: every object's scalar fields sit at the top level, joined through plan_join.
+    // Filter-only fields are keywords, and fields outside the schema stay in _source without being indexed.
+    XContentBuilder getMapping() throws IOException {
+
+        XContentBuilder builder = XContentFactory.jsonBuilder();
+        builder.startObject();
+        {
+            builder.field("dynamic", false);
+            builder.startObject("properties");
+            {
+                for (String field : List.of("_org", "objectId", "objectType", "planType")) {
+                    builder.startObject(field);
+                    {
+                        builder.field("type", "keyword");
+                    }
+                    builder.endObject();
+                }
+                builder.startObject("creationDate");
+                {
+                    builder.field("type", "date");
+                    builder.field("format", "MM-dd-yyyy");
+                    // The schema only says string, so a date in another format is kept in _source instead of
+                    // failing the whole document
+                    builder.field("ignore_malformed", true);
+                }
+                builder.endObject();
+                for (String field : List.of("copay", "deductible")) {
+                    builder.startObject(field);
+                    {
+                        builder.field("type", "long");
+                    }
+                    builder.endObject();
+                }
+                builder.startObject("name");
+                {
+                    // Matched on but never ranked by length, so norms are dead weight
+                    builder.field("type", "text");
+                    builder.field("norms", false);
+                }
+                builder.endObject();
+                builder.startObject("plan_join");
+                {
+                    builder.field("type", "join");
+                    builder.field("eager_global_ordinals", "true");
+                    builder.startObject("relations");
+                    {
+                        builder.array("plan", "planCostShares", "linkedPlanServices");
+                        builder.array("linkedPlanServices", "linkedService", "planserviceCostShares");
+                    }
+                    builder.endObject();
+                }
+                builder.endObject();
+            }
+            builder.endObject();
+        }
+        builder.endObject();
+
+        return builder;
+
+    }
+}
@@ -0,0 +1,230 @@
+package com.info7255.demo.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.rest.RestStatus;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Writes bulk requests with limits that adapt to Elasticsearch: documents per bulk request and bulk requests in flight
+// grow additively while latency stays under target, and halve on 429 rejections, slow responses or transport errors
+@Component
+public class PlanIndexWriter {
+    private final RestHighLevelClient client;
+    private final WriteRequest.RefreshPolicy refreshPolicy;
+    private final int maxRetries;
+    private final Duration retryBackoff;
+    private final int minBulkSize;
+    private final int maxBulkSize;
+    private final int maxConcurrency;
+    private final long targetLatencyNanos;
+    private final DistributionSummary bulkSize;
+    private final Timer bulkLatency;
+    private final Counter failedItems;
+    private final Counter conflictedItems;
+
+    private int bulkLimit;
+    private int concurrencyLimit;
+    private int inFlight;
+
+    public PlanIndexWriter(RestHighLevelClient client,
+                           MeterRegistry meterRegistry,
+                           @Value("${plan.index.refresh-policy:false}") String refreshPolicy,
+                           @Value("${plan.index.max-retries:3}") int maxRetries,
+                           @Value("${plan.index.retry-backoff:200ms}") Duration retryBackoff,
+                           @Value("${plan.index.bulk.initial-size:500}") int initialBulkSize,
+                           @Value("${plan.index.bulk.min-size:50}") int minBulkSize,
+                           @Value("${plan.index.bulk.max-size:5000}") int maxBulkSize,
+                           @Value("${plan.index.bulk.max-concurrency:4}") int maxConcurrency,
+                           @Value("${plan.index.bulk.target-latency:500ms}") Duration targetLatency) {
+        this.client = client;
+        this.refreshPolicy = WriteRequest.RefreshPolicy.parse(refreshPolicy);
+        this.maxRetries = maxRetries;
+        this.retryBackoff = retryBackoff;
+        this.minBulkSize = minBulkSize;
+        this.maxBulkSize = maxBulkSize;
+        this.maxConcurrency = maxConcurrency;
+        this.targetLatencyNanos = targetLatency.toNanos();
+        this.bulkLimit = Math.max(minBulkSize, Math.min(maxBulkSize, initialBulkSize));
+        this.concurrencyLimit = maxConcurrency;
+        this.bulkSize = DistributionSummary.builder("indexing.bulk.size")
+                .description("Documents per bulk request")
+                .register(meterRegistry);
+        this.bulkLatency = Timer.builder("indexing.bulk.latency")
+                .description("Elasticsearch bulk request latency")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.failedItems = Counter.builder("indexing.bulk.failed.items")
+                .description("Bulk items rejected by Elasticsearch, including ones later retried")
+                .register(meterRegistry);
+        this.conflictedItems = Counter.builder("indexing.bulk.conflicted.items")
+                .description("Versioned bulk items skipped because the index already held a newer version")
+                .register(meterRegistry);
+        Gauge.builder("indexing.bulk.limit", this, PlanIndexWriter::getBulkLimit)
+                .description("Current maximum documents per bulk request")
+                .register(meterRegistry);
+        Gauge.builder("indexing.bulk.concurrency.limit", this, PlanIndexWriter::getConcurrencyLimit)
+                .description("Current maximum bulk requests in flight")
+                .register(meterRegistry);
+    }
+
+    // Sends the requests in bulk chunks of the current size, retrying only items that failed with a transient status.
+    // Returns the items Elasticsearch rejected permanently; throws if it stays unreachable or overloaded.
+    public List<DocWriteRequest<?>> write(List<DocWriteRequest<?>> requests) throws IOException {
+        return write(requests, new ArrayList<>());
+    }
+
+    // As write, also adding to conflicted the versioned items Elasticsearch skipped for holding a newer version
+    public List<DocWriteRequest<?>> write(List<DocWriteRequest<?>> requests, List<DocWriteRequest<?>> conflicted)
+            throws IOException {
+        List<DocWriteRequest<?>> rejected = new ArrayList<>();
+        int from = 0;
+        while (from < requests.size()) {
+            int to = Math.min(requests.size(), from + getBulkLimit());
+            rejected.addAll(writeChunk(requests.subList(from, to), conflicted));
+            from = to;
+        }
+        return rejected;
+    }
+
+    public synchronized int getBulkLimit() {
+        return bulkLimit;
+    }
+
+    public synchronized int getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    private List<DocWriteRequest<?>> writeChunk(List<DocWriteRequest<?>> requests, List<DocWriteRequest<?>> conflicted)
+            throws IOException {
+        List<DocWriteRequest<?>> rejected = new ArrayList<>();
+        List<DocWriteRequest<?>> pending = requests;
+        for (int attempt = 0; !pending.isEmpty(); attempt++) {
+            if (attempt > 0) backoff(attempt);
+
+            BulkRequest bulkRequest = new BulkRequest();
+            pending.forEach(bulkRequest::add);
+            bulkRequest.setRefreshPolicy(refreshPolicy);
+
+            BulkResponse bulkResponse;
+            acquire();
+            long start = System.nanoTime();
+            try {
+                bulkResponse = client.bulk(bulkRequest, RequestOptions.DEFAULT);
+            } catch (IOException e) {
+                release(System.nanoTime() - start, true);
+                if (attempt >= maxRetries) throw e;
+                System.out.println("Bulk request failed, retrying: " + e.getMessage());
+                continue;
+            } catch (ElasticsearchStatusException e) {
+                // The whole request was answered with an error status: 429/503/504 are retried like a transport
+                // error, anything else means Elasticsearch will not take these documents as they are
+                release(System.nanoTime() - start, isRetryable(e.status()));
+                if (!isRetryable(e.status())) {
+                    System.out.println("Bulk request rejected with " + e.status() + ": " + e.getMessage());
+                    rejected.addAll(pending);
+                    return rejected;
+                }
+                if (attempt >= maxRetries) throw new IOException("Bulk request still failing after " + maxRetries + " retries", e);
+                System.out.println("Bulk request failed with " + e.status() + ", retrying");
+                continue;
+            }
+            long latency = System.nanoTime() - start;
+            bulkLatency.record(latency, TimeUnit.NANOSECONDS);
+            bulkSize.record(pending.size());
+
+            boolean overloaded = false;
+            List<DocWriteRequest<?>> retry = new ArrayList<>();
+            for (BulkItemResponse item : bulkResponse.getItems()) {
+                if (!item.isFailed()) {
+                    if (item.getResponse().getResult() == DocWriteResponse.Result.NOT_FOUND) {
+                        System.out.println("Document " + item.getId() + " Not Found!!");
+                    }
+                    continue;
+                }
+
+                // Versioned writes lose to a newer version of the plan already in the index, which is not a failure
+                if (item.status() == RestStatus.CONFLICT) {
+                    conflictedItems.increment();
+                    conflicted.add(pending.get(item.getItemId()));
+                    continue;
+                }
+
+                failedItems.increment();
+                if (!isRetryable(item.status())) {
+                    System.out.println("Rejected document " + item.getId() + ": " + item.getFailureMessage());
+                    rejected.add(pending.get(item.getItemId()));
+                } else if (attempt < maxRetries) {
+                    overloaded = true;
+                    retry.add(pending.get(item.getItemId()));
+                } else {
+                    release(latency, true);
+                    throw new IOException("Bulk item " + item.getId() + " still failing after " + maxRetries + " retries: " + item.getFailureMessage());
+                }
+            }
+            release(latency, overloaded);
+            pending = retry;
+        }
+        return rejected;
+    }
+
+    private synchronized void acquire() throws InterruptedIOException {
+        try {
+            while (inFlight >= concurrencyLimit) wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a bulk slot");
+        }
+        inFlight++;
+    }
+
+    // AIMD: one step up after a healthy response, half down after a rejected, failed or slow one
+    private synchronized void release(long latencyNanos, boolean overloaded) {
+        inFlight--;
+        if (overloaded || latencyNanos > targetLatencyNanos) {
+            bulkLimit = Math.max(minBulkSize, bulkLimit / 2);
+            concurrencyLimit = Math.max(1, concurrencyLimit / 2);
+        } else {
+            bulkLimit = Math.min(maxBulkSize, bulkLimit + minBulkSize);
+            concurrencyLimit = Math.min(maxConcurrency, concurrencyLimit + 1);
+        }
+        notifyAll();
+    }
+
+    static boolean isRetryable(RestStatus status) {
+        return status == RestStatus.TOO_MANY_REQUESTS
+                || status == RestStatus.SERVICE_UNAVAILABLE
+                || status == RestStatus.GATEWAY_TIMEOUT;
+    }
+
+    // Exponential backoff with jitter, so consumers that were rejected together do not retry together
+    private void backoff(int attempt) throws InterruptedIOException {
+        long delay = retryBackoff.toMillis() << (attempt - 1);
+        try {
+            Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while retrying bulk request");
+        }
+    }
+}
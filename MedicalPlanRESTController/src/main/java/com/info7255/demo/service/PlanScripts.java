@@ -0,0 +1,62 @@
+package com.info7255.demo.service;
+
+import org.springframework.stereotype.Component;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Loads the Lua scripts under resources/scripts and runs them by SHA. The scripts walk a plan's keys from the
+// one they are given, so they need every key of a plan on one server: standalone Redis, optionally with replicas.
+// Redis Cluster is not supported; it would need a hash-tagged key layout such as {plan:id}:<key>.
+@Component
+public class PlanScripts {
+    public static final String FETCH = "plan-fetch";
+    public static final String DELETE = "plan-delete";
+
+    private final Map<String, String> sources = new ConcurrentHashMap<>();
+    private final Map<String, String> shas = new ConcurrentHashMap<>();
+
+    public PlanScripts() {
+        sources.put(FETCH, readScript(FETCH));
+        sources.put(DELETE, readScript(DELETE));
+    }
+
+    public Object eval(Jedis jedis, String name, List<String> keys, List<String> args) {
+        String sha = shas.computeIfAbsent(name, (script) -> jedis.scriptLoad(sources.get(script)));
+        try {
+            return jedis.evalsha(sha, keys, args);
+        } catch (JedisDataException e) {
+            // Redis restarted or SCRIPT FLUSH ran: load the script again and retry once
+            if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) throw e;
+            sha = jedis.scriptLoad(sources.get(name));
+            shas.put(name, sha);
+            return jedis.evalsha(sha, keys, args);
+        }
+    }
+
+    // Queues a script inside MULTI. A NOSCRIPT reply could no longer be retried there, so the source is sent.
+    public Response<Object> queue(Transaction transaction, String name, List<String> keys, List<String> args) {
+        return transaction.eval(sources.get(name), keys, args);
+    }
+
+    public String getSource(String name) {
+        return sources.get(name);
+    }
+
+    private static String readScript(String name) {
+        try (InputStream stream = Objects.requireNonNull(PlanScripts.class.getResourceAsStream("/scripts/" + name + ".lua"))) {
+            return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read Lua script " + name, e);
+        }
+    }
+}
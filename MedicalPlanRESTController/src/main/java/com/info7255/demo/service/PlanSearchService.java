@@ -0,0 +1,139 @@
+package com.info7255.demo.service;
+
+import com.info7255.demo.exception.BadRequestException;
+import com.info7255.demo.model.PlanSearchQuery;
+import org.apache.lucene.search.join.ScoreMode;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.join.query.JoinQueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Typed versions of the has_parent / has_child queries over plan_join, paged with search_after
+@Service
+public class PlanSearchService {
+    public static final Set<String> RELATIONS =
+            Set.of("plan", "planCostShares", "linkedPlanServices", "linkedService", "planserviceCostShares");
+    private static final int DEFAULT_SIZE = 20;
+    private static final int MAX_SIZE = 100;
+    // objectId is unique across the index, so it alone gives search_after a total order
+    private static final String SORT_FIELD = "objectId";
+
+    private final RestHighLevelClient client;
+    private final SearchCache searchCache;
+
+    public PlanSearchService(RestHighLevelClient client, SearchCache searchCache) {
+        this.client = client;
+        this.searchCache = searchCache;
+    }
+
+    public Map<String, Object> search(PlanSearchQuery query) {
+        int size = query.getSize() == null ? DEFAULT_SIZE : query.getSize();
+        if (size < 1 || size > MAX_SIZE) throw new BadRequestException("size must be between 1 and " + MAX_SIZE);
+        BoolQueryBuilder boolQuery = buildQuery(query);
+
+        return searchCache.get(query.toString(), () -> execute(query, boolQuery, size)).getResult();
+    }
+
+    private SearchCache.Entry execute(PlanSearchQuery query, BoolQueryBuilder boolQuery, int size) {
+        SearchSourceBuilder source = new SearchSourceBuilder()
+                .query(boolQuery)
+                .size(size)
+                .sort(SORT_FIELD, SortOrder.ASC);
+        if (query.getCursor() != null) source.searchAfter(new Object[]{decodeCursor(query.getCursor())});
+
+        SearchResponse response;
+        try {
+            response = client.search(new SearchRequest(PlanIndexManager.ALIAS).source(source), RequestOptions.DEFAULT);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        List<Map<String, Object>> hits = new ArrayList<>();
+        Set<String> tags = scope(query);
+        for (SearchHit hit : response.getHits().getHits()) {
+            hits.add(hit.getSourceAsMap());
+            if (!tags.isEmpty()) tags.add(hit.getId());
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("total", response.getHits().getTotalHits() == null ? null : response.getHits().getTotalHits().value);
+        result.put("hits", hits);
+        SearchHit[] page = response.getHits().getHits();
+        result.put("cursor", page.length < size ? null : encodeCursor(page[page.length - 1].getId()));
+        return new SearchCache.Entry(result, tags);
+    }
+
+    BoolQueryBuilder buildQuery(PlanSearchQuery query) {
+        BoolQueryBuilder boolQuery = QueryBuilders.boolQuery();
+        if (query.getType() != null) boolQuery.filter(QueryBuilders.termQuery("plan_join", relation(query.getType())));
+        addFieldFilters(boolQuery, query.getOrg(), query.getObjectId(), query.getObjectType(), query.getPlanType(),
+                query.getCopay(), query.getDeductible());
+        if (query.getName() != null) boolQuery.must(QueryBuilders.matchQuery("name", query.getName()));
+
+        if (query.getParentType() != null || query.getParentId() != null) {
+            if (query.getParentType() == null) throw new BadRequestException("parentType is required with parentId");
+            BoolQueryBuilder parentQuery = QueryBuilders.boolQuery();
+            if (query.getParentId() != null) parentQuery.filter(QueryBuilders.termQuery("objectId", query.getParentId()));
+            boolQuery.filter(JoinQueryBuilders.hasParentQuery(relation(query.getParentType()),
+                    parentQuery.hasClauses() ? parentQuery : QueryBuilders.matchAllQuery(), false));
+        }
+
+        if (query.getChildType() != null || query.getChildId() != null
+                || query.getChildCopay() != null || query.getChildDeductible() != null) {
+            if (query.getChildType() == null) throw new BadRequestException("childType is required with child filters");
+            BoolQueryBuilder childQuery = QueryBuilders.boolQuery();
+            addFieldFilters(childQuery, null, query.getChildId(), null, null, query.getChildCopay(), query.getChildDeductible());
+            boolQuery.filter(JoinQueryBuilders.hasChildQuery(relation(query.getChildType()),
+                    childQuery.hasClauses() ? childQuery : QueryBuilders.matchAllQuery(), ScoreMode.None));
+        }
+        return boolQuery;
+    }
+
+    private void addFieldFilters(BoolQueryBuilder boolQuery, String org, String objectId, String objectType,
+                                 String planType, Long copay, Long deductible) {
+        if (org != null) boolQuery.filter(QueryBuilders.termQuery("_org", org));
+        if (objectId != null) boolQuery.filter(QueryBuilders.termQuery("objectId", objectId));
+        if (objectType != null) boolQuery.filter(QueryBuilders.termQuery("objectType", objectType));
+        if (planType != null) boolQuery.filter(QueryBuilders.termQuery("planType", planType));
+        if (copay != null) boolQuery.filter(QueryBuilders.termQuery("copay", copay));
+        if (deductible != null) boolQuery.filter(QueryBuilders.termQuery("deductible", deductible));
+    }
+
+    // Ids whose writes can change the result; empty when the query is not scoped to any object
+    private Set<String> scope(PlanSearchQuery query) {
+        Set<String> tags = new HashSet<>();
+        if (query.getObjectId() != null) tags.add(query.getObjectId());
+        if (query.getParentId() != null) tags.add(query.getParentId());
+        if (query.getChildId() != null) tags.add(query.getChildId());
+        return tags;
+    }
+
+    private String relation(String type) {
+        if (!RELATIONS.contains(type)) throw new BadRequestException("Unknown type " + type + ", expected one of " + RELATIONS);
+        return type;
+    }
+
+    private String encodeCursor(String objectId) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(objectId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String decodeCursor(String cursor) {
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid cursor");
+        }
+    }
+}
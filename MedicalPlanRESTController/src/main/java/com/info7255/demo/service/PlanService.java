@@ -1,154 +1,778 @@
 package com.info7255.demo.service;
 
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.info7255.demo.exception.BadRequestException;
+import com.info7255.demo.exception.PreconditionFailedException;
+import com.info7255.demo.exception.ResourceNotFoundException;
 import com.info7255.demo.model.ErrorResponse;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.PipelineBase;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.util.SafeEncoder;
+
+import java.io.IOException;
 
 import java.util.*;
+import java.util.function.Consumer;
 
 
 @Service
 public class PlanService {
-    private final Jedis jedis;
+    // Per-object registry of child relation keys, so reads and deletes never need KEYS
+    public static final String EDGES_PREFIX = "edges:";
+    private static final String EDGE_OBJECT = "object";
+    private static final String EDGE_ARRAY = "array";
+    // Child-to-parent pointers, used to find the plan that owns a sub-object
+    public static final String PARENT_PREFIX = "parent:";
+    // Whole-plan Smile snapshot kept next to the decomposed hashes for single-GET reads
+    public static final String SNAPSHOT_PREFIX = "snapshot:";
+
+    private final JedisPool jedisPool;
     private final ETagService eTagService;
+    private final PlanScripts planScripts;
+    private final SchemaTypeDecoder schemaTypeDecoder;
+    private final PlanCache planCache;
+    private final SchemaRegistry schemaRegistry;
+    private final boolean snapshotEnabled;
+    private final Counter corruptSnapshots;
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+    private final ObjectMapper snapshotMapper = new ObjectMapper(new SmileFactory());
 
-    public PlanService(Jedis jedis, ETagService eTagService) {
-        this.jedis = jedis;
+    public PlanService(JedisPool jedisPool,
+                       ETagService eTagService,
+                       PlanScripts planScripts,
+                       SchemaTypeDecoder schemaTypeDecoder,
+                       PlanCache planCache,
+                       SchemaRegistry schemaRegistry,
+                       MeterRegistry meterRegistry,
+                       @Value("${plan.snapshot.enabled:false}") boolean snapshotEnabled) {
+        this.jedisPool = jedisPool;
         this.eTagService = eTagService;
+        this.planScripts = planScripts;
+        this.schemaTypeDecoder = schemaTypeDecoder;
+        this.planCache = planCache;
+        this.schemaRegistry = schemaRegistry;
+        this.snapshotEnabled = snapshotEnabled;
+        this.corruptSnapshots = Counter.builder("plan.snapshot.corrupt")
+                .description("Plan snapshots that could not be decoded and were deleted")
+                .register(meterRegistry);
     }
 
     public boolean isKeyPresent(String key) {
-        Map<String, String> value = jedis.hgetAll(key);
-        jedis.close();
-        return !(value == null || value.isEmpty());
+        try (Jedis jedis = jedisPool.getResource()) {
+            return jedis.exists(key);
+        }
+    }
+
+    // Follows parent pointers up to the plan that owns key
+    public String getRootKey(String key) {
+        try (Jedis jedis = jedisPool.getResource()) {
+            return getRootKey(jedis, key);
+        }
+    }
+
+    private String getRootKey(Jedis jedis, String key) {
+        String root = key;
+        for (String parent = jedis.get(PARENT_PREFIX + key); parent != null; parent = jedis.get(PARENT_PREFIX + parent)) {
+            root = parent;
+        }
+        return root;
     }
 
     public String getETag(String key) {
-        return jedis.hget(key, "eTag");
+        return planCache.get(key, this::loadEntry).getETag();
     }
 
-    public String setETag(String key, JSONObject jsonObject) {
-        String eTag = eTagService.getETag(jsonObject);
-        jedis.hset(key, "eTag", eTag);
+    public String createPlan(JSONObject plan, String key) {
+        try (Jedis jedis = jedisPool.getResource()) {
+            // Every hash and edge set of the plan goes out in one MULTI/EXEC batch
+            Transaction transaction = jedis.multi();
+            Map<String, String> eTags = new LinkedHashMap<>();
+            jsonToMap(plan, null, transaction, eTags);
+            if (isSnapshotKey(key)) transaction.set(SafeEncoder.encode(SNAPSHOT_PREFIX + key), encodeSnapshot(plan.toMap()));
+            transaction.exec();
+            planCache.invalidateAll(eTags.keySet());
+            return eTags.get(key);
+        }
+    }
+
+    // Keys that already exist, checked in one round trip
+    public Set<String> getExistingKeys(Collection<String> keys) {
+        try (Jedis jedis = jedisPool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            Map<String, Response<Boolean>> exists = new LinkedHashMap<>();
+            keys.forEach((key) -> exists.put(key, pipeline.exists(key)));
+            pipeline.sync();
+
+            Set<String> existing = new HashSet<>();
+            exists.forEach((key, response) -> {
+                if (response.get()) existing.add(key);
+            });
+            return existing;
+        }
+    }
+
+    // Writes many plans in one pipelined round trip, each plan still atomic in its own MULTI/EXEC, and returns their ETags
+    public Map<String, String> createPlans(Map<String, JSONObject> plans) {
+        Map<String, String> planETags = new LinkedHashMap<>();
+        Set<String> written = new HashSet<>();
+        try (Jedis jedis = jedisPool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            for (Map.Entry<String, JSONObject> plan : plans.entrySet()) {
+                String key = plan.getKey();
+                Map<String, String> eTags = new LinkedHashMap<>();
+                pipeline.multi();
+                jsonToMap(plan.getValue(), null, pipeline, eTags);
+                if (isSnapshotKey(key)) pipeline.set(SafeEncoder.encode(SNAPSHOT_PREFIX + key), encodeSnapshot(plan.getValue().toMap()));
+                pipeline.exec();
+                planETags.put(key, eTags.get(key));
+                written.addAll(eTags.keySet());
+            }
+            pipeline.sync();
+        }
+        planCache.invalidateAll(written);
+        return planETags;
+    }
+
+    // Replaces the plan if its ETag is still one of ifMatch. The old tree is deleted and the new one written in the
+    // same MULTI, under WATCH from the ETag check on, so readers never see the plan missing and a failed update
+    // leaves the old plan in place.
+    public PatchResult replacePlan(String key, JSONObject plan, List<String> ifMatch) {
+        try (Jedis jedis = jedisPool.getResource()) {
+            jedis.watch(key);
+            Map<String, Object> stored;
+            try {
+                checkETag(jedis, key, ifMatch);
+                stored = fetchObject(jedis, key);
+            } catch (RuntimeException e) {
+                jedis.unwatch();
+                throw e;
+            }
+
+            // One map copy of the body serves both the snapshot and the caller's index diff
+            Map<String, Object> replacement = plan.toMap();
+            Transaction transaction = jedis.multi();
+            Response<Object> removed = planScripts.queue(transaction, PlanScripts.DELETE, deleteKeys(key), List.of());
+            Map<String, String> eTags = new LinkedHashMap<>();
+            jsonToMap(plan, null, transaction, eTags);
+            if (isSnapshotKey(key)) transaction.set(SafeEncoder.encode(SNAPSHOT_PREFIX + key), encodeSnapshot(replacement));
+            if (transaction.exec() == null) {
+                // Another write got in between the ETag check and EXEC, so nothing was applied
+                throw new PreconditionFailedException(jedis.hget(key, "eTag"));
+            }
+
+            Set<String> written = new HashSet<>((List<String>) removed.get());
+            written.addAll(eTags.keySet());
+            planCache.invalidateAll(written);
+            return new PatchResult(eTags.get(key), stored, replacement);
+        }
+    }
+
+    // Applies a JSON merge patch (RFC 7386) to the object at key if its ETag is still one of ifMatch. With mergeArraysById,
+    // arrays of objects are merged item by item on objectType:objectId instead of replaced. The object may be a plan or
+    // any object inside one: the patched object is spliced into its plan's tree, so the changed hashes and sets and the
+    // ETags on the path up to the plan are written in one MULTI, with the plan WATCHed from the ETag check to EXEC.
+    // The result carries the whole plan before and after, for the index diff.
+    public PatchResult mergePatch(String key, JSONObject patch, boolean mergeArraysById, List<String> ifMatch) {
+        try (Jedis jedis = jedisPool.getResource()) {
+            String rootKey = getRootKey(jedis, key);
+            jedis.watch(rootKey.equals(key) ? new String[]{key} : new String[]{key, rootKey});
+            Map<String, Object> stored;
+            Map<String, Object> patched;
+            try {
+                checkETag(jedis, key, ifMatch);
+                stored = fetchObject(jedis, rootKey, List.of("", "-1", "1"));
+                Map<String, Map<String, Object>> nodes = new HashMap<>();
+                locate(stored, null, new HashMap<>(), nodes);
+                // The object moved to another plan after its root was looked up
+                if (!nodes.containsKey(key)) throw new PreconditionFailedException(jedis.hget(key, "eTag"));
+                Map<String, Object> patchedObject = (Map<String, Object>) merge(nodes.get(key), patch.toMap(), mergeArraysById);
+                if (!key.equals(nodeKey(patchedObject))) throw new BadRequestException("objectId and objectType cannot be patched");
+                schemaRegistry.validate(String.valueOf(patchedObject.get("objectType")), new JSONObject((Map<String, Object>) withoutETags(patchedObject)));
+                patched = (Map<String, Object>) replaced(stored, key, patchedObject);
+            } catch (RuntimeException e) {
+                jedis.unwatch();
+                throw e;
+            }
+
+            Set<String> written = new LinkedHashSet<>();
+            Map<String, String> eTags = new HashMap<>();
+            Transaction transaction = jedis.multi();
+            writeTree(transaction, stored, patched, written, eTags);
+            if (isSnapshotKey(rootKey) && !written.isEmpty()) {
+                transaction.set(SafeEncoder.encode(SNAPSHOT_PREFIX + rootKey), encodeSnapshot((Map<String, Object>) withoutETags(patched)));
+            }
+            if (transaction.exec() == null) {
+                // Another write got in between the ETag check and EXEC, so nothing was applied
+                throw new PreconditionFailedException(jedis.hget(key, "eTag"));
+            }
+
+            planCache.invalidateAll(written);
+            return new PatchResult(eTags.get(key), (Map<String, Object>) withoutETags(stored), (Map<String, Object>) withoutETags(patched));
+        }
+    }
+
+    // Writes the difference between two states of a tree. Nodes that are gone or hang somewhere else now, together
+    // with everything below them, are dropped first; moved ones are then written afresh by writeChanges.
+    private String writeTree(Transaction transaction, Map<String, Object> stored, Map<String, Object> patched, Set<String> written,
+                             Map<String, String> eTags) {
+        Map<String, String> storedLocations = new LinkedHashMap<>();
+        Map<String, String> patchedLocations = new HashMap<>();
+        Map<String, Map<String, Object>> storedNodes = new HashMap<>();
+        locate(stored, null, storedLocations, storedNodes);
+        locate(patched, null, patchedLocations, new HashMap<>());
+
+        // Locations are in tree order, so parents are seen before their children
+        Set<String> dropped = new HashSet<>();
+        for (Map.Entry<String, String> location : storedLocations.entrySet()) {
+            String nodeKey = location.getKey();
+            String relationKey = location.getValue();
+            if (!patchedLocations.containsKey(nodeKey) || !Objects.equals(relationKey, patchedLocations.get(nodeKey))
+                    || relationKey != null && dropped.contains(relationKey.substring(0, relationKey.lastIndexOf(':')))) {
+                dropped.add(nodeKey);
+                List<String> keys = new ArrayList<>(List.of(nodeKey, EDGES_PREFIX + nodeKey, PARENT_PREFIX + nodeKey));
+                relationsOf(storedNodes.get(nodeKey)).keySet().forEach((relation) -> keys.add(nodeKey + ":" + relation));
+                transaction.del(keys.toArray(new String[0]));
+                written.add(nodeKey);
+            }
+        }
+        return writeChanges(transaction, stored, patched, written, eTags);
+    }
+
+    private void checkETag(Jedis jedis, String key, List<String> ifMatch) {
+        String eTag = jedis.hget(key, "eTag");
+        if (eTag == null) throw new ResourceNotFoundException("Plan not found!");
+        if (!ifMatch.contains(eTag)) throw new PreconditionFailedException(eTag);
+    }
+
+    private List<String> deleteKeys(String key) {
+        return isSnapshotKey(key) ? List.of(key, SNAPSHOT_PREFIX + key) : List.of(key);
+    }
+
+    // RFC 7386: objects merge recursively, null removes a member, anything else replaces the target
+    Object merge(Object target, Object patch, boolean mergeArraysById) {
+        if (patch instanceof Map) {
+            Map<String, Object> merged = target instanceof Map ? new LinkedHashMap<>((Map<String, Object>) target) : new LinkedHashMap<>();
+            for (Map.Entry<String, Object> member : ((Map<String, Object>) patch).entrySet()) {
+                if (member.getValue() == null) {
+                    merged.remove(member.getKey());
+                } else {
+                    merged.put(member.getKey(), merge(merged.get(member.getKey()), member.getValue(), mergeArraysById));
+                }
+            }
+            return merged;
+        }
+        if (mergeArraysById && patch instanceof List && target instanceof List) {
+            Map<Object, Object> items = new LinkedHashMap<>();
+            for (Object item : (List<Object>) target) items.put(item instanceof Map ? nodeKey((Map<String, Object>) item) : item, item);
+            for (Object item : (List<Object>) patch) {
+                Object id = item instanceof Map ? nodeKey((Map<String, Object>) item) : item;
+                items.put(id, merge(items.get(id), item, true));
+            }
+            return new ArrayList<>(items.values());
+        }
+        return patch;
+    }
+
+    // Writes what differs between the stored and patched state of one node and returns its ETag; eTags receives the ETag
+    // of every node below it too. A node whose fields and children are unchanged keeps its stored ETag, so only the path
+    // from each change up to the root is rehashed.
+    String writeChanges(Transaction transaction, Map<String, Object> stored, Map<String, Object> patched, Set<String> written,
+                        Map<String, String> eTags) {
+        String key = nodeKey(patched);
+        boolean changed = stored == null;
+
+        Map<String, String> storedFields = stored == null ? Map.of() : fieldsOf(stored);
+        Map<String, String> fields = fieldsOf(patched);
+        Map<String, String> changedFields = new HashMap<>();
+        fields.forEach((field, value) -> {
+            if (!value.equals(storedFields.get(field))) changedFields.put(field, value);
+        });
+        List<String> removedFields = new ArrayList<>(storedFields.keySet());
+        removedFields.removeAll(fields.keySet());
+        if (!changedFields.isEmpty()) transaction.hset(key, changedFields);
+        if (!removedFields.isEmpty()) transaction.hdel(key, removedFields.toArray(new String[0]));
+        changed |= !changedFields.isEmpty() || !removedFields.isEmpty();
+
+        Map<String, Object> storedRelations = stored == null ? Map.of() : relationsOf(stored);
+        Map<String, Object> relations = relationsOf(patched);
+        Map<String, List<String>> children = new HashMap<>();
+        for (Map.Entry<String, Object> relation : relations.entrySet()) {
+            String relationKey = key + ":" + relation.getKey();
+            Object storedRelation = storedRelations.get(relation.getKey());
+            Map<String, Map<String, Object>> storedMembers = storedRelation == null ? Map.of() : membersOf(storedRelation);
+            Map<String, Map<String, Object>> members = membersOf(relation.getValue());
+
+            List<String> childETags = new ArrayList<>();
+            for (Map.Entry<String, Map<String, Object>> member : members.entrySet()) {
+                Map<String, Object> storedMember = storedMembers.get(member.getKey());
+                String childETag = writeChanges(transaction, storedMember, member.getValue(), written, eTags);
+                if (storedMember == null) {
+                    transaction.sadd(relationKey, member.getKey());
+                    transaction.set(PARENT_PREFIX + member.getKey(), key);
+                }
+                changed |= !childETag.equals(storedMember == null ? null : storedMember.get("eTag"));
+                childETags.add(childETag);
+            }
+            for (String storedMember : storedMembers.keySet()) {
+                if (!members.containsKey(storedMember)) {
+                    transaction.srem(relationKey, storedMember);
+                    changed = true;
+                }
+            }
+            if (storedRelation == null || (storedRelation instanceof Map) != (relation.getValue() instanceof Map)) {
+                transaction.hset(EDGES_PREFIX + key, relationKey, relation.getValue() instanceof Map ? EDGE_OBJECT : EDGE_ARRAY);
+            }
+            children.put(relation.getKey(), childETags);
+        }
+        for (String storedRelation : storedRelations.keySet()) {
+            if (!relations.containsKey(storedRelation)) {
+                transaction.del(key + ":" + storedRelation);
+                transaction.hdel(EDGES_PREFIX + key, key + ":" + storedRelation);
+                changed = true;
+            }
+        }
+
+        String storedETag = stored == null ? null : (String) stored.get("eTag");
+        String eTag = changed || storedETag == null ? eTagService.getNodeETag(fields, children) : storedETag;
+        if (!eTag.equals(storedETag)) {
+            transaction.hset(key, "eTag", eTag);
+            written.add(key);
+        }
+        eTags.put(key, eTag);
         return eTag;
     }
 
-    public String createPlan(JSONObject plan, String key) {
-        jsonToMap(plan);
-        return setETag(key, plan);
+    // Records where each node of a tree hangs: the relation set that holds it, or null for the root
+    private void locate(Map<String, Object> node, String relationKey, Map<String, String> locations, Map<String, Map<String, Object>> nodes) {
+        String key = nodeKey(node);
+        locations.put(key, relationKey);
+        nodes.put(key, node);
+        relationsOf(node).forEach((relation, value) ->
+                membersOf(value).values().forEach((member) -> locate(member, key + ":" + relation, locations, nodes)));
+    }
+
+    // Scalar members as stored in the node's hash
+    private Map<String, String> fieldsOf(Map<String, Object> node) {
+        Map<String, String> fields = new HashMap<>();
+        node.forEach((name, value) -> {
+            if (value != null && !(value instanceof Map) && !(value instanceof List) && !name.equals("eTag")) fields.put(name, value.toString());
+        });
+        return fields;
+    }
+
+    // Object and non-empty array members; jsonToMap stores nothing for arrays without objects
+    private Map<String, Object> relationsOf(Map<String, Object> node) {
+        Map<String, Object> relations = new LinkedHashMap<>();
+        node.forEach((name, value) -> {
+            if (value instanceof Map || value instanceof List && !membersOf(value).isEmpty()) relations.put(name, value);
+        });
+        return relations;
+    }
+
+    private Map<String, Map<String, Object>> membersOf(Object relation) {
+        Map<String, Map<String, Object>> members = new LinkedHashMap<>();
+        List<Object> items = relation instanceof List ? (List<Object>) relation : List.of(relation);
+        for (Object item : items) {
+            if (item instanceof Map) members.put(nodeKey((Map<String, Object>) item), (Map<String, Object>) item);
+        }
+        return members;
+    }
+
+    private String nodeKey(Map<String, Object> node) {
+        return node.get("objectType") + ":" + node.get("objectId");
+    }
+
+    private Object withoutETags(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> copy = new LinkedHashMap<>();
+            ((Map<String, Object>) value).forEach((name, member) -> {
+                if (!name.equals("eTag")) copy.put(name, withoutETags(member));
+            });
+            return copy;
+        }
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<>();
+            ((List<Object>) value).forEach((item) -> copy.add(withoutETags(item)));
+            return copy;
+        }
+        return value;
     }
 
     public Map<String, Object> getPlan(String key) {
-        Map<String, Object> result = new HashMap<>();
-        getOrDelete(key, result, false);
-        return result;
+        return planCache.get(key, this::loadEntry).getPlan();
+    }
+
+    // Partial view of an object: only the listed field paths, and only depth levels of children expanded.
+    // Projections are read straight from Redis and not cached.
+    public Map<String, Object> getPlan(String key, String fields, Integer depth) {
+        if (fields == null && depth == null) return getPlan(key);
+        try (Jedis jedis = jedisPool.getResource()) {
+            return fetchObject(jedis, key, List.of(fields == null ? "" : fields, depth == null ? "-1" : depth.toString()));
+        }
     }
 
-    public void deletePlan(String key) {
-        getOrDelete(key, null, true);
+    // Reads the stored state past the near-cache, for consumers that must see the latest write
+    public Map<String, Object> readPlan(String key) {
+        try (Jedis jedis = jedisPool.getResource()) {
+            return readObject(jedis, key);
+        }
     }
 
-    public Map<String, Map<String, Object>> jsonToMap(JSONObject jsonObject) {
-        Map<String, Map<String, Object>> map = new HashMap<>();
-        Map<String, Object> contentMap = new HashMap<>();
+    // Deletes the object if its ETag is still one of ifMatch and returns what was deleted. A plan goes with the delete
+    // script; a sub-object is cut out of its plan's tree, which drops it, unlinks it from its parent and rehashes the
+    // ancestors in one MULTI. Either way the plan is WATCHed from the ETag check to EXEC.
+    public Map<String, Object> deletePlan(String key, List<String> ifMatch) {
+        try (Jedis jedis = jedisPool.getResource()) {
+            String rootKey = getRootKey(jedis, key);
+            jedis.watch(rootKey.equals(key) ? new String[]{key} : new String[]{key, rootKey});
+            Map<String, Object> stored;
+            Map<String, Object> deleted;
+            try {
+                checkETag(jedis, key, ifMatch);
+                stored = fetchObject(jedis, rootKey, List.of("", "-1", "1"));
+                Map<String, Map<String, Object>> nodes = new HashMap<>();
+                locate(stored, null, new HashMap<>(), nodes);
+                // The object moved to another plan after its root was looked up
+                if (!nodes.containsKey(key)) throw new PreconditionFailedException(jedis.hget(key, "eTag"));
+                deleted = (Map<String, Object>) withoutETags(nodes.get(key));
+            } catch (RuntimeException e) {
+                jedis.unwatch();
+                throw e;
+            }
+
+            Set<String> written = new LinkedHashSet<>();
+            Transaction transaction = jedis.multi();
+            Response<Object> removed = null;
+            if (rootKey.equals(key)) {
+                removed = planScripts.queue(transaction, PlanScripts.DELETE, deleteKeys(key), List.of());
+            } else {
+                Map<String, Object> remaining = (Map<String, Object>) without(stored, key);
+                writeTree(transaction, stored, remaining, written, new HashMap<>());
+                if (isSnapshotKey(rootKey)) {
+                    transaction.set(SafeEncoder.encode(SNAPSHOT_PREFIX + rootKey), encodeSnapshot((Map<String, Object>) withoutETags(remaining)));
+                }
+            }
+            if (transaction.exec() == null) {
+                String eTag = jedis.hget(key, "eTag");
+                if (eTag == null) throw new ResourceNotFoundException("Plan not found!");
+                throw new PreconditionFailedException(eTag);
+            }
+
+            // The script returns every object it removed, so cached sub-objects are dropped along with key
+            if (removed != null) written.addAll((List<String>) removed.get());
+            planCache.invalidateAll(written);
+            return deleted;
+        }
+    }
+
+    // Copy of a tree without the node stored at key
+    private Object without(Object value, String key) {
+        if (value instanceof Map) {
+            Map<String, Object> copy = new LinkedHashMap<>();
+            ((Map<String, Object>) value).forEach((name, member) -> {
+                if (!(member instanceof Map && nodeKey((Map<String, Object>) member).equals(key))) copy.put(name, without(member, key));
+            });
+            return copy;
+        }
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<>();
+            ((List<Object>) value).forEach((item) -> {
+                if (!(item instanceof Map && nodeKey((Map<String, Object>) item).equals(key))) copy.add(without(item, key));
+            });
+            return copy;
+        }
+        return value;
+    }
+
+    // Copy of a tree with the node stored at key swapped for replacement
+    private Object replaced(Object value, String key, Map<String, Object> replacement) {
+        if (value instanceof Map) {
+            if (nodeKey((Map<String, Object>) value).equals(key)) return replacement;
+            Map<String, Object> copy = new LinkedHashMap<>();
+            ((Map<String, Object>) value).forEach((name, member) -> copy.put(name, replaced(member, key, replacement)));
+            return copy;
+        }
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<>();
+            ((List<Object>) value).forEach((item) -> copy.add(replaced(item, key, replacement)));
+            return copy;
+        }
+        return value;
+    }
+
+    // Recomputes the ETag of one node from its stored fields and the stored ETags of its children
+    private String rehash(Jedis jedis, String key) {
+        Pipeline pipeline = jedis.pipelined();
+        Response<Map<String, String>> storedFields = pipeline.hgetAll(key);
+        Response<Map<String, String>> storedEdges = pipeline.hgetAll(EDGES_PREFIX + key);
+        pipeline.sync();
+
+        pipeline = jedis.pipelined();
+        Map<String, Response<Set<String>>> storedMembers = new HashMap<>();
+        for (String relationKey : storedEdges.get().keySet()) {
+            storedMembers.put(relationKey, pipeline.smembers(relationKey));
+        }
+        pipeline.sync();
+
+        pipeline = jedis.pipelined();
+        Map<String, List<Response<String>>> storedChildETags = new HashMap<>();
+        for (Map.Entry<String, Response<Set<String>>> relation : storedMembers.entrySet()) {
+            List<Response<String>> childETags = new ArrayList<>();
+            for (String member : relation.getValue().get()) childETags.add(pipeline.hget(member, "eTag"));
+            storedChildETags.put(relation.getKey().substring(key.length() + 1), childETags);
+        }
+        pipeline.sync();
+
+        Map<String, String> fields = new HashMap<>(storedFields.get());
+        fields.remove("eTag");
+        Map<String, List<String>> children = new HashMap<>();
+        for (Map.Entry<String, List<Response<String>>> relation : storedChildETags.entrySet()) {
+            List<String> childETags = new ArrayList<>();
+            relation.getValue().forEach((response) -> childETags.add(response.get()));
+            children.put(relation.getKey(), childETags);
+        }
+
+        String eTag = eTagService.getNodeETag(fields, children);
+        jedis.hset(key, "eTag", eTag);
+        return eTag;
+    }
+
+    private PlanCache.Entry loadEntry(String key) {
+        try (Jedis jedis = jedisPool.getResource()) {
+            String eTag = jedis.hget(key, "eTag");
+            return new PlanCache.Entry(readObject(jedis, key), eTag);
+        }
+    }
+
+    private Map<String, Object> readObject(Jedis jedis, String key) {
+        if (isSnapshotKey(key)) {
+            Map<String, Object> snapshot = decodeSnapshot(jedis, key);
+            if (snapshot != null) return snapshot;
+        }
+        return fetchObject(jedis, key);
+    }
+
+    // The whole object graph is assembled by a Lua script in a single round trip
+    private Map<String, Object> fetchObject(Jedis jedis, String key) {
+        return fetchObject(jedis, key, List.of());
+    }
+
+    private Map<String, Object> fetchObject(Jedis jedis, String key, List<String> args) {
+        return readFetched(key, (String) planScripts.eval(jedis, PlanScripts.FETCH, List.of(key), args));
+    }
+
+    // Parses what the fetch script returned and restores scalar types from the schemas
+    public Map<String, Object> readFetched(String key, String json) {
+        if (json == null) return new HashMap<>();
+        try {
+            Map<String, Object> object = jsonMapper.readValue(json, Map.class);
+            schemaTypeDecoder.decode(object);
+            return object;
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not read object " + key, e);
+        }
+    }
+
+    public boolean isSnapshotKey(String key) {
+        return snapshotEnabled && key.startsWith("plan:");
+    }
+
+    byte[] encodeSnapshot(Map<String, Object> plan) {
+        try {
+            return snapshotMapper.writeValueAsBytes(plan);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not encode plan snapshot", e);
+        }
+    }
+
+    // A snapshot that no longer decodes is deleted, so later reads go straight to the fetch script until the next
+    // write stores a new one. A snapshot written between the GET and the DEL is lost too, which only costs a fetch.
+    private Map<String, Object> decodeSnapshot(Jedis jedis, String key) {
+        byte[] snapshot = jedis.get(SafeEncoder.encode(SNAPSHOT_PREFIX + key));
+        if (snapshot == null) return null;
+        try {
+            return snapshotMapper.readValue(snapshot, Map.class);
+        } catch (IOException e) {
+            System.out.println("Deleting unreadable plan snapshot of " + key + ": " + e.getMessage());
+            jedis.del(SNAPSHOT_PREFIX + key);
+            corruptSnapshots.increment();
+            return null;
+        }
+    }
+
+    public String jsonToMap(JSONObject jsonObject, String parentKey, PipelineBase transaction, Map<String, String> eTags) {
+        return decompose(jsonObject, parentKey, eTags, (node) -> {
+            transaction.hset(node.getKey(), node.getFields());
+            if (!node.getEdges().isEmpty()) transaction.hset(EDGES_PREFIX + node.getKey(), node.getEdges());
+            node.getMembers().forEach((relationKey, members) -> transaction.sadd(relationKey, members.toArray(new String[0])));
+            if (node.getParentKey() != null) transaction.set(PARENT_PREFIX + node.getKey(), node.getParentKey());
+        });
+    }
+
+    // Splits an object into the hashes, edge registries and relation sets it is stored as, children before parents,
+    // and returns its key. The caller decides how the nodes are written, so blocking and reactive writes share it.
+    public String decompose(JSONObject jsonObject, String parentKey, Map<String, String> eTags, Consumer<Node> writer) {
+        Map<String, String> fields = new HashMap<>();
+        Map<String, String> edges = new HashMap<>();
+        Map<String, List<String>> members = new HashMap<>();
+        Map<String, List<String>> children = new HashMap<>();
+        String redisKey = jsonObject.get("objectType") + ":" + jsonObject.get("objectId");
 
         for (String key : jsonObject.keySet()) {
-            String redisKey = jsonObject.get("objectType") + ":" + jsonObject.get("objectId");
             Object value = jsonObject.get(key);
 
             if (value instanceof JSONObject) {
-                value = jsonToMap((JSONObject) value);
-                jedis.sadd(redisKey + ":" + key, ((Map<String, Map<String, Object>>) value).entrySet().iterator().next().getKey());
+                String childKey = decompose((JSONObject) value, redisKey, eTags, writer);
+                members.put(redisKey + ":" + key, List.of(childKey));
+                edges.put(redisKey + ":" + key, EDGE_OBJECT);
+                children.put(key, List.of(eTags.get(childKey)));
             } else if (value instanceof JSONArray) {
-                value = jsonToList((JSONArray) value);
-                ((List<Map<String, Map<String, Object>>>) value)
-                        .forEach((entry) -> {
-                            entry.keySet()
-                                    .forEach((listKey) -> {
-                                        jedis.sadd(redisKey + ":" + key, listKey);
-                                    });
-                        });
+                List<String> childKeys = new ArrayList<>();
+                for (Object item : (JSONArray) value) {
+                    if (item instanceof JSONObject) childKeys.add(decompose((JSONObject) item, redisKey, eTags, writer));
+                }
+                if (!childKeys.isEmpty()) {
+                    members.put(redisKey + ":" + key, childKeys);
+                    edges.put(redisKey + ":" + key, EDGE_ARRAY);
+                    List<String> childETags = new ArrayList<>();
+                    childKeys.forEach((childKey) -> childETags.add(eTags.get(childKey)));
+                    children.put(key, childETags);
+                }
             } else {
-                jedis.hset(redisKey, key, value.toString());
-                contentMap.put(key, value);
-                map.put(redisKey, contentMap);
+                fields.put(key, value.toString());
             }
         }
-        return map;
-    }
 
-    private Map<String, Object> getOrDelete(String redisKey, Map<String, Object> resultMap, boolean isDelete) {
-        Set<String> keys = jedis.keys(redisKey + ":*");
-        keys.add(redisKey);
+        // A node's ETag covers its own fields and its children's ETags, so it changes whenever anything below it does
+        String eTag = eTagService.getNodeETag(fields, children);
+        eTags.put(redisKey, eTag);
+        fields.put("eTag", eTag);
+        writer.accept(new Node(redisKey, parentKey, fields, edges, members));
+        return redisKey;
+    }
 
-        for (String key : keys) {
-            if (key.equals(redisKey)) {
-                if (isDelete) jedis.del(new String[]{key});
-                else {
-                    Map<String, String> object = jedis.hgetAll(key);
-                    for (String attrKey : object.keySet()) {
-                        if (!attrKey.equalsIgnoreCase("eTag")) {
-                            resultMap.put(attrKey, isInteger(object.get(attrKey)) ? Integer.parseInt(object.get(attrKey)) : object.get(attrKey));
-                        }
-                    }
-                }
-            } else {
-                String newKey = key.substring((redisKey + ":").length());
-                Set<String> members = jedis.smembers(key);
-                if (members.size() > 1 || newKey.equals("linkedPlanServices")) {
-                    List<Object> listObj = new ArrayList<>();
-                    for (String member : members) {
-                        if (isDelete) {
-                            getOrDelete(member, null, true);
-                        } else {
-                            Map<String, Object> listMap = new HashMap<>();
-                            listObj.add(getOrDelete(member, listMap, false));
-                        }
-                    }
-                    if (isDelete) jedis.del(new String[]{key});
-                    else resultMap.put(newKey, listObj);
-                } else {
-                    if (isDelete) {
-                        jedis.del(new String[]{members.iterator().next(), key});
-                    } else {
-                        Map<String, String> object = jedis.hgetAll(members.iterator().next());
-                        Map<String, Object> nestedMap = new HashMap<>();
-                        for (String attrKey : object.keySet()) {
-                            nestedMap.put(attrKey,
-                                    isInteger(object.get(attrKey)) ? Integer.parseInt(object.get(attrKey)) : object.get(attrKey));
-                        }
-                        resultMap.put(newKey, nestedMap);
+    // Builds the edge registry, parent pointers and node ETags for data written before they existed,
+    // using SCAN instead of KEYS
+    public int migrateEdgeIndex() {
+        int migrated = 0;
+        List<String> plans = new ArrayList<>();
+        ScanParams params = new ScanParams().count(1000);
+        String cursor = ScanParams.SCAN_POINTER_START;
+        try (Jedis jedis = jedisPool.getResource()) {
+            do {
+                ScanResult<String> page = jedis.scan(cursor, params);
+                for (String key : page.getResult()) {
+                    if (key.startsWith(EDGES_PREFIX) || key.startsWith(PARENT_PREFIX) || key.startsWith(SNAPSHOT_PREFIX)) continue;
+                    String[] parts = key.split(":");
+                    if (parts.length == 2 && parts[0].equals("plan")) {
+                        plans.add(key);
+                        continue;
                     }
+                    if (parts.length != 3 || !"set".equals(jedis.type(key))) continue;
+
+                    String parentKey = key.substring(0, key.lastIndexOf(':'));
+                    String relation = key.substring(key.lastIndexOf(':') + 1);
+                    boolean isArray = relation.equals("linkedPlanServices") || jedis.scard(key) > 1;
+                    jedis.hset(EDGES_PREFIX + parentKey, key, isArray ? EDGE_ARRAY : EDGE_OBJECT);
+                    for (String member : jedis.smembers(key)) jedis.set(PARENT_PREFIX + member, parentKey);
+                    migrated++;
                 }
+                cursor = page.getCursor();
+            } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+
+            for (String plan : plans) {
+                rehashTree(jedis, plan);
+                planCache.invalidate(plan);
             }
         }
-        return resultMap;
+        return migrated;
     }
 
-    public List<Object> jsonToList(JSONArray jsonArray) {
-        List<Object> result = new ArrayList<>();
-        for (Object value : jsonArray) {
-            if (value instanceof JSONArray) value = jsonToList((JSONArray) value);
-            else if (value instanceof JSONObject) value = jsonToMap((JSONObject) value);
-            result.add(value);
+    private String rehashTree(Jedis jedis, String key) {
+        for (String relationKey : jedis.hkeys(EDGES_PREFIX + key)) {
+            for (String member : jedis.smembers(relationKey)) rehashTree(jedis, member);
         }
-        return result;
+        return rehash(jedis, key);
     }
 
-    private boolean isInteger(String str) {
-        try {
-            Integer.parseInt(str);
-        } catch (Exception e) {
-            return false;
+    public static class PatchResult {
+        private final String eTag;
+        private final Map<String, Object> previous;
+        private final Map<String, Object> patched;
+
+        public PatchResult(String eTag, Map<String, Object> previous, Map<String, Object> patched) {
+            this.eTag = eTag;
+            this.previous = previous;
+            this.patched = patched;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        public Map<String, Object> getPrevious() {
+            return previous;
+        }
+
+        public Map<String, Object> getPatched() {
+            return patched;
+        }
+    }
+
+    // One stored object: its hash, the edge registry of its relations and the members of each relation set
+    public static class Node {
+        private final String key;
+        private final String parentKey;
+        private final Map<String, String> fields;
+        private final Map<String, String> edges;
+        private final Map<String, List<String>> members;
+
+        public Node(String key, String parentKey, Map<String, String> fields, Map<String, String> edges, Map<String, List<String>> members) {
+            this.key = key;
+            this.parentKey = parentKey;
+            this.fields = fields;
+            this.edges = edges;
+            this.members = members;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getParentKey() {
+            return parentKey;
+        }
+
+        public Map<String, String> getFields() {
+            return fields;
+        }
+
+        public Map<String, String> getEdges() {
+            return edges;
+        }
+
+        public Map<String, List<String>> getMembers() {
+            return members;
         }
-        return true;
     }
 }
@@ -0,0 +1,85 @@
+package com.info7255.demo.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.info7255.demo.DemoApplication;
+import com.info7255.demo.model.IndexingMessage;
+import com.rabbitmq.client.AMQP;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.rabbitmq.OutboundMessage;
+import reactor.rabbitmq.Sender;
+
+import java.util.Collection;
+import java.util.List;
+
+// Non-blocking counterpart of IndexingPublisher: records the change in the IndexChangeLog keys and sends the same
+// message to the same partition queue, so the indexing consumers cannot tell which stack published it
+@Service
+@Profile("reactive")
+public class ReactiveIndexingPublisher {
+    private static final AMQP.BasicProperties PROPERTIES = new AMQP.BasicProperties.Builder()
+            .contentType("application/json")
+            .contentEncoding("UTF-8")
+            .deliveryMode(2)
+            .build();
+
+    private final ReactiveRedis redis;
+    private final Sender sender;
+    private final int partitions;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public ReactiveIndexingPublisher(ReactiveRedis redis,
+                                     Sender sender,
+                                     @Value("${plan.indexing.partitions:4}") int partitions) {
+        this.redis = redis;
+        this.sender = sender;
+        this.partitions = partitions;
+    }
+
+    public Mono<Void> publishSave(String planId) {
+        return publish("SAVE", planId, null, List.of());
+    }
+
+    public Mono<Void> publishDelete(String planId, Collection<String> deletes) {
+        return publish("DELETE", planId, List.of(), deletes);
+    }
+
+    public Mono<Void> publishUpdate(String planId, Collection<String> upserts, Collection<String> deletes) {
+        return publish("UPDATE", planId, upserts, deletes);
+    }
+
+    private Mono<Void> publish(String operation, String planId, Collection<String> upserts, Collection<String> deletes) {
+        return record(planId, upserts, deletes).flatMap((version) -> {
+            IndexingMessage message = new IndexingMessage(operation, planId, version, System.currentTimeMillis());
+            String routingKey = IndexingPublisher.routingKey(planId, partitions);
+
+            System.out.println("Sending message to " + routingKey + ": " + message);
+            return sender.send(Mono.just(new OutboundMessage(DemoApplication.topicExchangeName, routingKey, PROPERTIES, toJson(message))));
+        });
+    }
+
+    // The MULTI of IndexChangeLog.record, on a pooled connection
+    private Mono<Long> record(String planId, Collection<String> upserts, Collection<String> deletes) {
+        return redis.withConnection((commands) -> commands.multi().flatMap((ok) -> {
+            if (upserts == null) {
+                commands.sadd(IndexChangeLog.UPSERTS_PREFIX + planId, IndexChangeLog.ALL).subscribe();
+            } else if (!upserts.isEmpty()) {
+                commands.sadd(IndexChangeLog.UPSERTS_PREFIX + planId, upserts.toArray(new String[0])).subscribe();
+            }
+            if (!deletes.isEmpty()) commands.sadd(IndexChangeLog.DELETES_PREFIX + planId, deletes.toArray(new String[0])).subscribe();
+            commands.incr(IndexChangeLog.VERSION_PREFIX + planId).subscribe();
+            return commands.exec();
+        })).map((result) -> (Long) result.get(result.size() - 1));
+    }
+
+    private byte[] toJson(IndexingMessage message) {
+        try {
+            return objectMapper.writeValueAsBytes(message);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not encode indexing message", e);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.info7255.demo.service;
+
+import com.info7255.demo.exception.PreconditionFailedException;
+import com.info7255.demo.exception.ResourceNotFoundException;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.TransactionResult;
+import io.lettuce.core.api.reactive.RedisReactiveCommands;
+import org.json.JSONObject;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.*;
+
+// Plan CRUD for the reactive profile, on the same Redis layout, Lua scripts and ETags as PlanService.
+// Reads always go to Redis: the near-cache belongs to the servlet stack, so writes here publish cache
+// invalidations. Creates and replaces write the plan snapshot in their MULTI, as PlanService does.
+@Service
+@Profile("reactive")
+public class ReactivePlanService {
+    private final ReactiveRedis redis;
+    private final PlanService planService;
+
+    public ReactivePlanService(ReactiveRedis redis, PlanService planService) {
+        this.redis = redis;
+        this.planService = planService;
+    }
+
+    public Mono<Boolean> isKeyPresent(String key) {
+        return redis.commands().exists(key).map((count) -> count > 0);
+    }
+
+    public Mono<String> getETag(String key) {
+        return redis.commands().hget(key, "eTag");
+    }
+
+    // Empty when the object does not exist
+    public Mono<Map<String, Object>> getPlan(String key, String fields, Integer depth) {
+        List<String> args = List.of(fields == null ? "" : fields, depth == null ? "-1" : depth.toString());
+        return redis.<String>eval(PlanScripts.FETCH, ScriptOutputType.VALUE, List.of(key), args)
+                .map((json) -> planService.readFetched(key, json));
+    }
+
+    // Follows parent pointers up to the plan that owns key
+    public Mono<String> getRootKey(String key) {
+        return Mono.just(key)
+                .expand((current) -> redis.commands().get(PlanService.PARENT_PREFIX + current))
+                .last();
+    }
+
+    public Mono<String> createPlan(JSONObject plan, String key) {
+        Map<String, String> eTags = new HashMap<>();
+        List<PlanService.Node> nodes = new ArrayList<>();
+        planService.decompose(plan, null, eTags, nodes::add);
+
+        return redis.withConnection((commands) -> commands.multi().flatMap((ok) -> {
+                    nodes.forEach((node) -> write(commands, node));
+                    writeSnapshot(commands, key, plan.toMap());
+                    return commands.exec();
+                }))
+                .then(invalidate(eTags.keySet()))
+                .thenReturn(eTags.get(key));
+    }
+
+    // Replaces the plan only if its ETag is still one of ifMatch, checked under WATCH so a write that lands
+    // in between aborts the EXEC. The result carries the replaced plan for the index diff.
+    public Mono<PlanService.PatchResult> replacePlan(String key, JSONObject plan, List<String> ifMatch) {
+        Map<String, String> eTags = new HashMap<>();
+        List<PlanService.Node> nodes = new ArrayList<>();
+        planService.decompose(plan, null, eTags, nodes::add);
+        // One map copy of the body serves both the snapshot and the caller's index diff
+        Map<String, Object> replacement = plan.toMap();
+
+        return redis.withConnection((commands) -> commands.watch(key)
+                .then(checkETag(commands, key, ifMatch))
+                .then(redis.<String>eval(commands, PlanScripts.FETCH, ScriptOutputType.VALUE, List.of(key), List.of()))
+                .flatMap((json) -> commands.multi()
+                        .flatMap((ok) -> {
+                            redis.queueScript(commands, PlanScripts.DELETE, ScriptOutputType.MULTI, deleteKeys(key));
+                            nodes.forEach((node) -> write(commands, node));
+                            writeSnapshot(commands, key, replacement);
+                            return commands.exec();
+                        })
+                        .flatMap((result) -> afterExec(result, key, planService.readFetched(key, json))
+                                .flatMap((previous) -> {
+                                    Set<String> written = new HashSet<>(removedKeys(result));
+                                    written.addAll(eTags.keySet());
+                                    return invalidate(written).thenReturn(new PlanService.PatchResult(eTags.get(key), previous, replacement));
+                                }))));
+    }
+
+    // Merge patches rehash stored subtrees with many dependent reads, so they stay on PlanService, off the event loop
+    public Mono<PlanService.PatchResult> patchPlan(String key, JSONObject patch, boolean mergeArraysById, List<String> ifMatch) {
+        return Mono.fromCallable(() -> planService.mergePatch(key, patch, mergeArraysById, ifMatch))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    // Deletes the object if its ETag is still one of ifMatch and returns what was deleted
+    public Mono<Map<String, Object>> deletePlan(String key, List<String> ifMatch) {
+        return redis.commands().exists(PlanService.PARENT_PREFIX + key)
+                .flatMap((hasParent) -> hasParent > 0 ? deleteChild(key, ifMatch) : deleteRoot(key, ifMatch));
+    }
+
+    private Mono<Map<String, Object>> deleteRoot(String key, List<String> ifMatch) {
+        return redis.withConnection((commands) -> commands.watch(key)
+                .then(checkETag(commands, key, ifMatch))
+                .then(redis.<String>eval(commands, PlanScripts.FETCH, ScriptOutputType.VALUE, List.of(key), List.of()))
+                .flatMap((json) -> commands.multi()
+                        .flatMap((ok) -> {
+                            redis.queueScript(commands, PlanScripts.DELETE, ScriptOutputType.MULTI, deleteKeys(key));
+                            return commands.exec();
+                        })
+                        .flatMap((result) -> afterExec(result, key, planService.readFetched(key, json))
+                                .flatMap((deleted) -> invalidate(removedKeys(result)).thenReturn(deleted)))));
+    }
+
+    // Removing a sub-object rewrites its plan's tree in one MULTI, which PlanService does off the event loop
+    private Mono<Map<String, Object>> deleteChild(String key, List<String> ifMatch) {
+        return Mono.fromCallable(() -> planService.deletePlan(key, ifMatch))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private Mono<Void> checkETag(RedisReactiveCommands<String, String> commands, String key, List<String> ifMatch) {
+        return commands.hget(key, "eTag")
+                .switchIfEmpty(Mono.error(() -> new ResourceNotFoundException("Plan not found!")))
+                .flatMap((eTag) -> ifMatch.contains(eTag) ? Mono.<Void>empty() : Mono.<Void>error(new PreconditionFailedException(eTag)));
+    }
+
+    // A discarded EXEC means the WATCHed key changed after its ETag was checked
+    private <T> Mono<T> afterExec(TransactionResult result, String key, T value) {
+        if (!result.wasDiscarded()) return Mono.just(value);
+        return getETag(key)
+                .switchIfEmpty(Mono.error(() -> new ResourceNotFoundException("Plan not found!")))
+                .flatMap((eTag) -> Mono.error(new PreconditionFailedException(eTag)));
+    }
+
+    // Queued inside MULTI; the replies arrive with EXEC
+    private void write(RedisReactiveCommands<String, String> commands, PlanService.Node node) {
+        commands.hset(node.getKey(), node.getFields()).subscribe();
+        if (!node.getEdges().isEmpty()) commands.hset(PlanService.EDGES_PREFIX + node.getKey(), node.getEdges()).subscribe();
+        node.getMembers().forEach((relationKey, members) -> commands.sadd(relationKey, members.toArray(new String[0])).subscribe());
+        if (node.getParentKey() != null) commands.set(PlanService.PARENT_PREFIX + node.getKey(), node.getParentKey()).subscribe();
+    }
+
+    private void writeSnapshot(RedisReactiveCommands<String, String> commands, String key, Map<String, Object> plan) {
+        if (planService.isSnapshotKey(key)) redis.queueSet(commands, PlanService.SNAPSHOT_PREFIX + key, planService.encodeSnapshot(plan));
+    }
+
+    private List<String> deleteKeys(String key) {
+        return planService.isSnapshotKey(key) ? List.of(key, PlanService.SNAPSHOT_PREFIX + key) : List.of(key);
+    }
+
+    // The delete script is queued first, so its reply, the keys of every removed object, leads the EXEC result
+    private List<String> removedKeys(TransactionResult result) {
+        return result.get(0);
+    }
+
+    // Same message format as PlanCache.invalidateAll: one publish naming every written or removed object
+    private Mono<Void> invalidate(Collection<String> keys) {
+        return redis.commands().publish(PlanCache.INVALIDATION_CHANNEL, String.join(",", keys)).then();
+    }
+}
@@ -0,0 +1,90 @@
+package com.info7255.demo.service;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisNoScriptException;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.reactive.RedisReactiveCommands;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.output.StatusOutput;
+import io.lettuce.core.protocol.CommandArgs;
+import io.lettuce.core.protocol.CommandType;
+import io.lettuce.core.support.AsyncConnectionPoolSupport;
+import io.lettuce.core.support.BoundedAsyncPool;
+import io.lettuce.core.support.BoundedPoolConfig;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.function.Function;
+
+// Lettuce connections for the reactive profile. Plain commands are multiplexed over one shared connection;
+// WATCH/MULTI needs a connection of its own, so transactions borrow one from a small non-blocking pool.
+@Component
+@Profile("reactive")
+public class ReactiveRedis {
+    private final StatefulRedisConnection<String, String> connection;
+    private final BoundedAsyncPool<StatefulRedisConnection<String, String>> transactionPool;
+    private final PlanScripts planScripts;
+
+    public ReactiveRedis(RedisClient redisClient,
+                         RedisURI redisURI,
+                         PlanScripts planScripts,
+                         @Value("${plan.reactive.transaction-connections:16}") int transactionConnections) {
+        this.connection = redisClient.connect();
+        this.transactionPool = AsyncConnectionPoolSupport.createBoundedObjectPool(
+                () -> redisClient.connectAsync(StringCodec.UTF8, redisURI),
+                BoundedPoolConfig.builder().maxTotal(transactionConnections).maxIdle(transactionConnections).build());
+        this.planScripts = planScripts;
+    }
+
+    public RedisReactiveCommands<String, String> commands() {
+        return connection.reactive();
+    }
+
+    // Runs work on a pooled connection. It goes back to the pool once work completes; after an error or a
+    // cancellation it may still be inside WATCH or MULTI, so it is closed instead.
+    public <T> Mono<T> withConnection(Function<RedisReactiveCommands<String, String>, Mono<T>> work) {
+        return Mono.usingWhen(Mono.fromCompletionStage(transactionPool::acquire),
+                (borrowed) -> work.apply(borrowed.reactive()),
+                (borrowed) -> Mono.fromCompletionStage(transactionPool.release(borrowed)),
+                (borrowed, error) -> Mono.fromCompletionStage(transactionPool.destroy(borrowed)),
+                (borrowed) -> Mono.fromCompletionStage(transactionPool.destroy(borrowed)));
+    }
+
+    // Same scripts as PlanScripts, by digest first and by source if Redis no longer has them cached
+    public <T> Mono<T> eval(RedisReactiveCommands<String, String> commands, String name, ScriptOutputType type,
+                            List<String> keys, List<String> args) {
+        String source = planScripts.getSource(name);
+        String[] keyArray = keys.toArray(new String[0]);
+        String[] argArray = args.toArray(new String[0]);
+        return commands.<T>evalsha(commands.digest(source), type, keyArray, argArray).next()
+                .onErrorResume(RedisNoScriptException.class, (e) -> commands.<T>eval(source, type, keyArray, argArray).next());
+    }
+
+    public <T> Mono<T> eval(String name, ScriptOutputType type, List<String> keys, List<String> args) {
+        return eval(commands(), name, type, keys, args);
+    }
+
+    // Queues a script inside MULTI, where a NOSCRIPT reply could no longer be retried, so the source is sent
+    public void queueScript(RedisReactiveCommands<String, String> commands, String name, ScriptOutputType type, List<String> keys) {
+        commands.eval(planScripts.getSource(name), type, keys.toArray(new String[0])).subscribe();
+    }
+
+    // Queues a SET of a binary value, such as a Smile plan snapshot, on a connection whose codec only carries UTF-8
+    // strings; the raw bytes go into the command arguments as they are
+    public void queueSet(RedisReactiveCommands<String, String> commands, String key, byte[] value) {
+        CommandArgs<String, String> args = new CommandArgs<>(StringCodec.UTF8).addKey(key).add(value);
+        commands.dispatch(CommandType.SET, new StatusOutput<>(StringCodec.UTF8), args).subscribe();
+    }
+
+    @PreDestroy
+    public void close() {
+        transactionPool.close();
+        connection.close();
+    }
+}
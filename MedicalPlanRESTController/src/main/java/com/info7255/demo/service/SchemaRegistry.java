@@ -0,0 +1,180 @@
+package com.info7255.demo.service;
+
+import com.info7255.demo.exception.BadRequestException;
+import org.everit.json.schema.Schema;
+import org.everit.json.schema.ValidationException;
+import org.everit.json.schema.loader.SchemaLoader;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+@Component
+public class SchemaRegistry {
+    // Overrides are read from files named <objectType>.v<version>.json, highest version wins
+    private static final Pattern VERSIONED_FILE = Pattern.compile("(.+)\\.v(\\d+)\\.json");
+    private static final int BUILT_IN_VERSION = 1;
+
+    private final String directory;
+    private volatile Registry registry;
+
+    public SchemaRegistry(@Value("${plan.schema.directory:}") String directory) {
+        this.directory = directory;
+        this.registry = load();
+    }
+
+    // Compiles everything into a new registry and swaps it in; on failure the old one stays active
+    public Map<String, Integer> reload() {
+        registry = load();
+        System.out.println("Schemas reloaded: " + registry.versions);
+        return getVersions();
+    }
+
+    public Map<String, Integer> getVersions() {
+        return Collections.unmodifiableMap(registry.versions);
+    }
+
+    public void validate(String objectType, JSONObject object) {
+        Schema schema = registry.schemas.get(objectType);
+        if (schema == null) throw new BadRequestException("No schema registered for objectType " + objectType);
+        validate(schema, object);
+    }
+
+    public Map<String, String> getFieldTypes(String objectType) {
+        return registry.typesByObjectType.getOrDefault(objectType, Collections.emptyMap());
+    }
+
+    public String getFieldType(String field) {
+        return registry.typesByField.get(field);
+    }
+
+    private void validate(Schema schema, Object value) {
+        try {
+            schema.validate(value);
+        } catch (ValidationException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+    }
+
+    private Registry load() {
+        Map<String, JSONObject> sources = new HashMap<>();
+        Map<String, Integer> versions = new HashMap<>();
+
+        try (InputStream stream = Objects.requireNonNull(SchemaRegistry.class.getResourceAsStream("/plan-schema.json"))) {
+            register(new JSONObject(new JSONTokener(stream)), null, BUILT_IN_VERSION, sources, versions);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read built-in plan schema", e);
+        }
+
+        for (Map.Entry<Path, Integer> file : versionedFiles().entrySet()) {
+            String objectType = objectTypeOf(file.getKey());
+            try (InputStream stream = Files.newInputStream(file.getKey())) {
+                register(new JSONObject(new JSONTokener(stream)), objectType, file.getValue(), sources, versions);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read schema " + file.getKey(), e);
+            }
+        }
+
+        Registry compiled = new Registry(versions);
+        for (Map.Entry<String, JSONObject> source : sources.entrySet()) {
+            compiled.add(source.getKey(), source.getValue());
+        }
+        return compiled;
+    }
+
+    // Registers the schema under objectType, plus every nested object schema under its own objectType
+    private void register(JSONObject schema, String objectType, int version,
+                          Map<String, JSONObject> sources, Map<String, Integer> versions) {
+        String type = objectType != null ? objectType : exampleObjectType(schema);
+        if (type != null && versions.getOrDefault(type, 0) <= version) {
+            sources.put(type, schema);
+            versions.put(type, version);
+        }
+
+        JSONObject items = schema.optJSONObject("items");
+        if (items != null) register(items, null, version, sources, versions);
+
+        JSONObject properties = schema.optJSONObject("properties");
+        if (properties == null) return;
+        for (String field : properties.keySet()) {
+            JSONObject property = properties.optJSONObject(field);
+            if (property != null) register(property, null, version, sources, versions);
+        }
+    }
+
+    private String exampleObjectType(JSONObject schema) {
+        JSONObject properties = schema.optJSONObject("properties");
+        JSONObject objectType = properties == null ? null : properties.optJSONObject("objectType");
+        JSONArray examples = objectType == null ? null : objectType.optJSONArray("examples");
+        return examples == null || examples.isEmpty() ? null : examples.getString(0);
+    }
+
+    private Map<Path, Integer> versionedFiles() {
+        Map<Path, Integer> files = new TreeMap<>();
+        if (directory == null || directory.isBlank()) return files;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(directory), "*.json")) {
+            for (Path path : stream) {
+                Matcher matcher = VERSIONED_FILE.matcher(path.getFileName().toString());
+                if (matcher.matches()) files.put(path, Integer.parseInt(matcher.group(2)));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not list schema directory " + directory, e);
+        }
+
+        // Apply lower versions first so the highest version of each objectType wins
+        Map<Path, Integer> ordered = new LinkedHashMap<>();
+        files.entrySet().stream()
+                .sorted(Map.Entry.comparingByValue())
+                .forEach((entry) -> ordered.put(entry.getKey(), entry.getValue()));
+        return ordered;
+    }
+
+    private String objectTypeOf(Path path) {
+        Matcher matcher = VERSIONED_FILE.matcher(path.getFileName().toString());
+        matcher.matches();
+        return matcher.group(1);
+    }
+
+    private static class Registry {
+        private final Map<String, Integer> versions;
+        private final Map<String, Schema> schemas = new HashMap<>();
+        private final Map<String, Map<String, String>> typesByObjectType = new HashMap<>();
+        private final Map<String, String> typesByField = new HashMap<>();
+
+        private Registry(Map<String, Integer> versions) {
+            this.versions = versions;
+        }
+
+        private void add(String objectType, JSONObject source) {
+            schemas.put(objectType, SchemaLoader.load(source));
+
+            Map<String, String> fieldTypes = new HashMap<>();
+            JSONObject sourceProperties = source.optJSONObject("properties");
+            if (sourceProperties != null) {
+                for (String field : sourceProperties.keySet()) {
+                    JSONObject property = sourceProperties.optJSONObject(field);
+                    if (property == null) continue;
+
+                    String type = property.optString("type");
+                    if (!type.equals("object") && !type.equals("array")) {
+                        fieldTypes.put(field, type);
+                        typesByField.putIfAbsent(field, type);
+                    }
+                }
+            }
+            typesByObjectType.put(objectType, fieldTypes);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.info7255.demo.service;
+
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+
+@Component
+public class SchemaTypeDecoder {
+    // Redis hashes only hold strings, so scalar types are looked up from the registered schemas instead of guessed
+    private final SchemaRegistry schemaRegistry;
+
+    public SchemaTypeDecoder(SchemaRegistry schemaRegistry) {
+        this.schemaRegistry = schemaRegistry;
+    }
+
+    public void decode(Map<String, Object> object) {
+        Map<String, String> fieldTypes = schemaRegistry.getFieldTypes(String.valueOf(object.get("objectType")));
+        for (Map.Entry<String, Object> entry : object.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Map) {
+                decode((Map<String, Object>) value);
+            } else if (value instanceof List) {
+                for (Object item : (List<Object>) value) {
+                    if (item instanceof Map) decode((Map<String, Object>) item);
+                }
+            } else if (value instanceof String) {
+                String type = fieldTypes.get(entry.getKey());
+                if (type == null) type = schemaRegistry.getFieldType(entry.getKey());
+                entry.setValue(decodeValue(type, (String) value));
+            }
+        }
+    }
+
+    private Object decodeValue(String type, String value) {
+        if (type == null) return value;
+        switch (type) {
+            case "integer":
+                return Long.valueOf(value);
+            case "number":
+                return new BigDecimal(value);
+            case "boolean":
+                return Boolean.valueOf(value);
+            default:
+                return value;
+        }
+    }
+}
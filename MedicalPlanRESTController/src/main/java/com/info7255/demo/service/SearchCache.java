@@ -0,0 +1,123 @@
+package com.info7255.demo.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.elasticsearch.action.DocWriteRequest;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Search results tagged with the object ids they depend on. Indexing publishes the ids it wrote,
+// and every node drops results tagged with one of them; queries without an id in scope are dropped on any write.
+@Component
+public class SearchCache implements MessageListener {
+    public static final String INVALIDATION_CHANNEL = "search-invalidation";
+
+    private final JedisPool jedisPool;
+    private final boolean enabled;
+    private final Duration evictionDelay;
+    private final Cache<String, Entry> cache;
+    private final ScheduledExecutorService delayedEvictions = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "search-cache-eviction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SearchCache(JedisPool jedisPool,
+                       MeterRegistry meterRegistry,
+                       RedisMessageListenerContainer listenerContainer,
+                       @Value("${plan.search.cache.enabled:true}") boolean enabled,
+                       @Value("${plan.search.cache.maximum-size:1000}") long maximumSize,
+                       @Value("${plan.search.cache.ttl:30s}") Duration ttl,
+                       @Value("${plan.search.cache.eviction-delay:2s}") Duration evictionDelay) {
+        this.jedisPool = jedisPool;
+        this.enabled = enabled;
+        this.evictionDelay = evictionDelay;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "search");
+        listenerContainer.addMessageListener(this, new ChannelTopic(INVALIDATION_CHANNEL));
+    }
+
+    public Entry get(String query, Supplier<Entry> loader) {
+        if (!enabled) return loader.get();
+        return cache.get(query, (key) -> loader.get());
+    }
+
+    public void invalidate(Collection<String> objectIds) {
+        if (!enabled || objectIds.isEmpty()) return;
+        evict(objectIds);
+        try (Jedis jedis = jedisPool.getResource()) {
+            jedis.publish(INVALIDATION_CHANNEL, String.join(",", objectIds));
+        }
+    }
+
+    // A written document affects results that contain it, results scoped to its parent and, through the routing,
+    // results scoped to its plan. Writes only become searchable at the next index refresh, and a search in between
+    // caches the old result again, so the same ids are evicted once more after evictionDelay.
+    public void invalidateWrites(List<DocWriteRequest<?>> requests, Collection<String> parentIds) {
+        Set<String> objectIds = new HashSet<>(parentIds);
+        for (DocWriteRequest<?> request : requests) {
+            objectIds.add(request.id());
+            if (request.routing() != null && !request.routing().isEmpty()) objectIds.add(request.routing());
+        }
+        invalidate(objectIds);
+        if (!enabled || objectIds.isEmpty() || evictionDelay.isZero()) return;
+        delayedEvictions.schedule(() -> {
+            try {
+                invalidate(objectIds);
+            } catch (RuntimeException e) {
+                // Other nodes keep the stale result until its ttl; this node has already dropped it
+                System.out.println("Delayed search cache eviction failed: " + e.getMessage());
+            }
+        }, evictionDelay.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        delayedEvictions.shutdownNow();
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        evict(Arrays.asList(new String(message.getBody(), StandardCharsets.UTF_8).split(",")));
+    }
+
+    private void evict(Collection<String> objectIds) {
+        cache.asMap().values().removeIf((entry) -> entry.tags.isEmpty() || !Collections.disjoint(entry.tags, objectIds));
+    }
+
+    public static class Entry {
+        private final Map<String, Object> result;
+        private final Set<String> tags;
+
+        // Empty tags mean the result can change with any write
+        public Entry(Map<String, Object> result, Set<String> tags) {
+            this.result = result;
+            this.tags = tags;
+        }
+
+        public Map<String, Object> getResult() {
+            return result;
+        }
+    }
+}
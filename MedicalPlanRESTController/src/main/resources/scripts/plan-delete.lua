@@ -0,0 +1,34 @@
+-- Deletes the object stored at KEYS[1] with its whole subtree: object hashes, edge registries,
+-- parent pointers and relation sets. Any further KEYS (e.g. the plan snapshot) are removed in the same call.
+-- Returns the keys of the removed objects, so callers can invalidate every cached copy.
+-- Single-node Redis only: the script reads and removes keys it discovers while walking (edge registries,
+-- relation sets, child objects) rather than keys passed in KEYS. That is allowed on a standalone server or a
+-- primary with replicas, but not on Redis Cluster, where those keys can live in other slots.
+local keys = {}
+local objects = {}
+
+local function collect(key)
+    table.insert(objects, key)
+    table.insert(keys, key)
+    local edgesKey = 'edges:' .. key
+    table.insert(keys, edgesKey)
+    table.insert(keys, 'parent:' .. key)
+    local edges = redis.call('HGETALL', edgesKey)
+    for i = 1, #edges, 2 do
+        local relationKey = edges[i]
+        for _, member in ipairs(redis.call('SMEMBERS', relationKey)) do
+            collect(member)
+        end
+        table.insert(keys, relationKey)
+    end
+end
+
+collect(KEYS[1])
+for i = 2, #KEYS do
+    table.insert(keys, KEYS[i])
+end
+
+for i = 1, #keys, 500 do
+    redis.call('UNLINK', unpack(keys, i, math.min(i + 499, #keys)))
+end
+return objects
@@ -0,0 +1,97 @@
+-- Assembles the object stored at KEYS[1] on the server by walking the edges:<key> registry
+-- written by PlanService.jsonToMap. Returns the object as a JSON string, or nil if it is missing.
+-- ARGV[1] optionally lists comma-separated field paths to include (e.g. planCostShares,linkedPlanServices.linkedService);
+-- relations outside them are never read. ARGV[2] optionally limits how many relation levels are expanded;
+-- children below that are returned as {objectType, objectId} references. ARGV[3] set to 1 keeps each node's eTag field.
+
+-- Single-node Redis only: the script reads keys it discovers while walking (edge registries,
+-- relation sets, child objects) rather than keys passed in KEYS. That is allowed on a standalone server or a
+-- primary with replicas, but not on Redis Cluster, where those keys can live in other slots.
+
+-- Turns the field paths into a tree where true means the whole subtree and a table restricts it further
+local function parseFields(spec)
+    if spec == nil or spec == '' then
+        return nil
+    end
+    local tree = {}
+    for path in string.gmatch(spec, '[^,]+') do
+        local parts = {}
+        for part in string.gmatch(path, '[^.]+') do
+            table.insert(parts, part)
+        end
+        local node = tree
+        for i, part in ipairs(parts) do
+            if node[part] == true then
+                break
+            end
+            if i == #parts then
+                node[part] = true
+            else
+                if node[part] == nil then
+                    node[part] = {}
+                end
+                node = node[part]
+            end
+        end
+    end
+    return tree
+end
+
+local function ref(key)
+    local separator = string.find(key, ':', 1, true)
+    return { objectType = string.sub(key, 1, separator - 1), objectId = string.sub(key, separator + 1) }
+end
+
+local withETags = ARGV[3] == '1'
+local fetch
+
+local function child(member, projection, depth)
+    if depth == 0 then
+        return ref(member)
+    end
+    return fetch(member, projection, depth - 1)
+end
+
+fetch = function(key, projection, depth)
+    local object = {}
+    local fields = redis.call('HGETALL', key)
+    for i = 1, #fields, 2 do
+        local name = fields[i]
+        if (name ~= 'eTag' or withETags) and (projection == nil or projection[name] ~= nil or name == 'objectId' or name == 'objectType') then
+            object[name] = fields[i + 1]
+        end
+    end
+
+    local edges = redis.call('HGETALL', 'edges:' .. key)
+    for i = 1, #edges, 2 do
+        local relationKey, kind = edges[i], edges[i + 1]
+        local name = string.sub(relationKey, #key + 2)
+        local childProjection = nil
+        if projection ~= nil and type(projection[name]) == 'table' then
+            childProjection = projection[name]
+        end
+
+        if projection == nil or projection[name] ~= nil then
+            local members = redis.call('SMEMBERS', relationKey)
+            if kind == 'array' then
+                local list = {}
+                for _, member in ipairs(members) do
+                    table.insert(list, child(member, childProjection, depth))
+                end
+                -- cjson cannot tell an empty table from an empty object, so empty relations are omitted
+                if #list > 0 then
+                    object[name] = list
+                end
+            elseif #members > 0 then
+                object[name] = child(members[1], childProjection, depth)
+            end
+        end
+    end
+    return object
+end
+
+if redis.call('EXISTS', KEYS[1]) == 0 then
+    return nil
+end
+-- A negative depth never reaches 0, so everything is expanded
+return cjson.encode(fetch(KEYS[1], parseFields(ARGV[1]), tonumber(ARGV[2]) or -1))
@@ -0,0 +1,55 @@
+package com.info7255.demo.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ETagServiceTest {
+    private final ETagService eTagService = new ETagService();
+
+    @Test
+    void nodeETagIsQuotedAndStable() {
+        Map<String, String> fields = Map.of("objectId", "1", "copay", "23");
+        String eTag = eTagService.getNodeETag(fields, Map.of());
+
+        assertThat(eTag).startsWith("\"").endsWith("\"");
+        assertThat(eTagService.getNodeETag(Map.of("copay", "23", "objectId", "1"), Map.of())).isEqualTo(eTag);
+    }
+
+    @Test
+    void childOrderDoesNotMatter() {
+        Map<String, String> fields = Map.of("objectId", "1");
+
+        assertThat(eTagService.getNodeETag(fields, Map.of("linkedPlanServices", List.of("\"a\"", "\"b\""))))
+                .isEqualTo(eTagService.getNodeETag(fields, Map.of("linkedPlanServices", List.of("\"b\"", "\"a\""))));
+    }
+
+    @Test
+    void fieldOrChildChangesChangeTheETag() {
+        Map<String, String> fields = Map.of("objectId", "1", "copay", "23");
+        Map<String, List<String>> children = Map.of("planCostShares", List.of("\"a\""));
+        String eTag = eTagService.getNodeETag(fields, children);
+
+        assertThat(eTagService.getNodeETag(Map.of("objectId", "1", "copay", "24"), children)).isNotEqualTo(eTag);
+        assertThat(eTagService.getNodeETag(fields, Map.of("planCostShares", List.of("\"b\"")))).isNotEqualTo(eTag);
+        assertThat(eTagService.getNodeETag(fields, Map.of("linkedPlanServices", List.of("\"a\"")))).isNotEqualTo(eTag);
+    }
+
+    @Test
+    void valuesCannotRunTogether() {
+        assertThat(eTagService.getNodeETag(Map.of("ab", "c"), Map.of()))
+                .isNotEqualTo(eTagService.getNodeETag(Map.of("a", "bc"), Map.of()));
+    }
+
+    @Test
+    void missingChildETagsAreIgnored() {
+        Map<String, String> fields = Map.of("objectId", "1");
+
+        assertThat(eTagService.getNodeETag(fields, Map.of("linkedPlanServices", Arrays.asList("\"a\"", null))))
+                .isEqualTo(eTagService.getNodeETag(fields, Map.of("linkedPlanServices", List.of("\"a\""))));
+    }
+}
@@ -0,0 +1,85 @@
+package com.info7255.demo.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static com.info7255.demo.service.PlanFixtures.*;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PlanDocumentMapperTest {
+    private final PlanDocumentMapper documentMapper = new PlanDocumentMapper();
+
+    @Test
+    void everyObjectBecomesADocumentRoutedByItsPlan() {
+        Map<String, PlanDocumentMapper.PlanDocument> documents = documentMapper.toDocuments(plan());
+
+        assertThat(documents).hasSize(8);
+        assertThat(documents.values()).allSatisfy((document) -> assertThat(document.getRouting()).isEqualTo(PLAN_ID));
+
+        PlanDocumentMapper.PlanDocument root = documents.get(PLAN_ID);
+        assertThat(root.getParentId()).isEmpty();
+        assertThat(root.getSource()).containsEntry("plan_join", "plan").doesNotContainKey("linkedPlanServices");
+
+        PlanDocumentMapper.PlanDocument service = documents.get("1234520xvc30asdf-502");
+        assertThat(service.getParentId()).isEqualTo("27283xvx9asdff-504");
+        assertThat(service.getSource()).containsEntry("plan_join", Map.of("name", "linkedService", "parent", "27283xvx9asdff-504"));
+    }
+
+    @Test
+    void sameContentWithOtherNumberTypesIsNoChange() {
+        Map<String, Object> stored = plan();
+        // Stored plans decode integers as Long, request bodies as Integer
+        member(stored, "planCostShares").put("copay", 23L);
+
+        assertThat(documentMapper.diff(documentMapper.toDocuments(stored), documentMapper.toDocuments(plan())).isEmpty()).isTrue();
+    }
+
+    @Test
+    void changedDocumentIsTheOnlyUpsert() {
+        Map<String, Object> updated = plan();
+        member(linkedPlanService(updated, 1), "planserviceCostShares").put("copay", 200);
+
+        PlanDocumentMapper.Diff diff = documentMapper.diff(documentMapper.toDocuments(plan()), documentMapper.toDocuments(updated));
+
+        assertThat(diff.getUpserts()).containsExactly("1234512xvc1314sdfsd-506");
+        assertThat(diff.getDeletes()).isEmpty();
+    }
+
+    @Test
+    void removedSubtreeIsDeletedAndNewOneUpserted() {
+        Map<String, Object> updated = plan();
+        List<Object> services = (List<Object>) updated.get("linkedPlanServices");
+        services.remove(0);
+        Map<String, Object> added = (Map<String, Object>) copy(services.get(0));
+        added.put("objectId", "27283xvx9sdf-600");
+        services.add(added);
+
+        PlanDocumentMapper.Diff diff = documentMapper.diff(documentMapper.toDocuments(plan()), documentMapper.toDocuments(updated));
+
+        assertThat(diff.getUpserts()).containsExactly("27283xvx9sdf-600");
+        assertThat(diff.getDeletes()).containsExactlyInAnyOrder("27283xvx9asdff-504", "1234520xvc30asdf-502", "1234512xvc1314asdf-502");
+    }
+
+    @Test
+    void movedDocumentIsAnUpsert() {
+        Map<String, Object> updated = plan();
+        // Same content under another parent
+        Map<String, Object> service = member(linkedPlanService(updated, 0), "linkedService");
+        linkedPlanService(updated, 0).put("linkedService", member(linkedPlanService(updated, 1), "linkedService"));
+        linkedPlanService(updated, 1).put("linkedService", service);
+
+        PlanDocumentMapper.Diff diff = documentMapper.diff(documentMapper.toDocuments(plan()), documentMapper.toDocuments(updated));
+
+        assertThat(diff.getUpserts()).containsExactlyInAnyOrder("1234520xvc30asdf-502", "1234520xvc30sfs-505");
+    }
+
+    @Test
+    void collectIdsListsChildrenBeforeParents() {
+        List<String> ids = documentMapper.collectIds(plan());
+
+        assertThat(ids).hasSize(8).endsWith(PLAN_ID);
+        assertThat(ids.indexOf("1234520xvc30asdf-502")).isLessThan(ids.indexOf("27283xvx9asdff-504"));
+    }
+}
@@ -0,0 +1,89 @@
+package com.info7255.demo.service;
+
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+// The sample plan from src/test/resources/plan.json, with helpers to reach into its tree
+final class PlanFixtures {
+    static final String PLAN_ID = "12xvxc345ssdsds-508";
+    static final String PLAN_KEY = "plan:" + PLAN_ID;
+
+    private PlanFixtures() {
+    }
+
+    static JSONObject planJson() {
+        try (InputStream stream = Objects.requireNonNull(PlanFixtures.class.getResourceAsStream("/plan.json"))) {
+            return new JSONObject(new JSONTokener(stream));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static Map<String, Object> plan() {
+        return planJson().toMap();
+    }
+
+    // The sample plan with suffix appended to every objectId, so several copies can be stored side by side
+    static JSONObject renamed(String suffix) {
+        Map<String, Object> plan = plan();
+        rename(plan, suffix);
+        return new JSONObject(plan);
+    }
+
+    // The sample plan renamed with suffix, its linkedPlanServices grown to count copies of the first one:
+    // 2 + 3 * count objects in all
+    static JSONObject withPlanServices(String suffix, int count) {
+        Map<String, Object> plan = plan();
+        List<Object> planServices = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Object planService = copy(linkedPlanService(plan, 0));
+            rename(planService, "-" + i);
+            planServices.add(planService);
+        }
+        plan.put("linkedPlanServices", planServices);
+        rename(plan, suffix);
+        return new JSONObject(plan);
+    }
+
+    static Map<String, Object> linkedPlanService(Map<String, Object> plan, int index) {
+        return (Map<String, Object>) ((List<Object>) plan.get("linkedPlanServices")).get(index);
+    }
+
+    static Map<String, Object> member(Map<String, Object> object, String relation) {
+        return (Map<String, Object>) object.get(relation);
+    }
+
+    // Deep copy, so a test can change one side of a comparison
+    static Object copy(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> copy = new LinkedHashMap<>();
+            ((Map<String, Object>) value).forEach((name, member) -> copy.put(name, copy(member)));
+            return copy;
+        }
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<>();
+            ((List<Object>) value).forEach((item) -> copy.add(copy(item)));
+            return copy;
+        }
+        return value;
+    }
+
+    private static void rename(Object value, String suffix) {
+        if (value instanceof Map) {
+            Map<String, Object> node = (Map<String, Object>) value;
+            node.values().forEach((member) -> rename(member, suffix));
+            if (node.containsKey("objectId")) node.put("objectId", node.get("objectId") + suffix);
+        } else if (value instanceof List) {
+            ((List<Object>) value).forEach((item) -> rename(item, suffix));
+        }
+    }
+}
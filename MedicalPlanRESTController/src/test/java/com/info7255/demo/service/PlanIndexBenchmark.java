@@ -0,0 +1,173 @@
+package com.info7255.demo.service;
+
+import org.apache.http.HttpHost;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.info7255.demo.service.PlanFixtures.withPlanServices;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+// Primary store size and filter query latency of the same plans under the old dynamic mapping, where every field
+// became text with a keyword subfield, and under PlanIndexManager's current mapping. Needs Elasticsearch on
+// ELASTICSEARCH_HOST:ELASTICSEARCH_PORT (localhost:9200) and is skipped without one. Not picked up by surefire's
+// defaults; run it with mvn test -Dtest=PlanIndexBenchmark
+class PlanIndexBenchmark {
+    private static final String DYNAMIC_INDEX = "plan-index-benchmark-dynamic";
+    private static final String TUNED_INDEX = "plan-index-benchmark-tuned";
+    private static final int PLANS = 1_000;
+    private static final int WARMUP = 200;
+    private static final int QUERIES = 2_000;
+
+    private final PlanDocumentMapper documentMapper = new PlanDocumentMapper();
+    private RestHighLevelClient client;
+    private boolean reachable;
+
+    @BeforeEach
+    void connect() throws IOException {
+        String host = System.getenv().getOrDefault("ELASTICSEARCH_HOST", "localhost");
+        int port = Integer.parseInt(System.getenv().getOrDefault("ELASTICSEARCH_PORT", "9200"));
+        client = new RestHighLevelClient(RestClient.builder(new HttpHost(host, port, "http")));
+
+        try {
+            reachable = client.ping(RequestOptions.DEFAULT);
+        } catch (IOException e) {
+            reachable = false;
+        }
+        assumeTrue(reachable, "No Elasticsearch at " + host + ":" + port);
+        deleteIndices();
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        try {
+            if (reachable) deleteIndices();
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    void storeSizeAndQueryLatencyPerMapping() throws IOException {
+        PlanIndexManager indexManager = new PlanIndexManager(client, null, 3, 1, 0, "-1", null);
+        createIndex(DYNAMIC_INDEX, dynamicMapping());
+        createIndex(TUNED_INDEX, indexManager.getMapping());
+        for (int plan = 0; plan < PLANS; plan++) {
+            JSONObject planJson = withPlanServices("-index-" + plan, 10);
+            index(planJson, DYNAMIC_INDEX);
+            index(planJson, TUNED_INDEX);
+        }
+        for (String index : new String[]{DYNAMIC_INDEX, TUNED_INDEX}) {
+            client.getLowLevelClient().performRequest(new Request("POST", "/" + index + "/_refresh"));
+            client.getLowLevelClient().performRequest(new Request("POST", "/" + index + "/_forcemerge?max_num_segments=1"));
+        }
+
+        System.out.println(String.format("%-32s %10s %14s %10s %10s", "index", "docs", "store bytes", "p50 us", "p99 us"));
+        report(DYNAMIC_INDEX, filters("objectType.keyword", "_org.keyword"));
+        report(TUNED_INDEX, filters("objectType", "_org"));
+    }
+
+    private void report(String index, QueryBuilder query) throws IOException {
+        JSONObject primaries = new JSONObject(EntityUtils.toString(client.getLowLevelClient()
+                .performRequest(new Request("GET", "/" + index + "/_stats/docs,store")).getEntity()))
+                .getJSONObject("indices").getJSONObject(index).getJSONObject("primaries");
+        long docs = primaries.getJSONObject("docs").getLong("count");
+        assertThat(docs).isEqualTo(PLANS * 32L);
+
+        SearchRequest request = new SearchRequest(index).requestCache(false)
+                .source(new SearchSourceBuilder().query(query).size(10));
+        long[] nanos = new long[QUERIES];
+        for (int i = -WARMUP; i < QUERIES; i++) {
+            long start = System.nanoTime();
+            client.search(request, RequestOptions.DEFAULT);
+            if (i >= 0) nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        System.out.println(String.format("%-32s %10d %,14d %10d %10d", index, docs,
+                primaries.getJSONObject("store").getLong("size_in_bytes"),
+                nanos[QUERIES / 2] / 1000, nanos[(int) Math.ceil(QUERIES * 0.99) - 1] / 1000));
+    }
+
+    // The filters GET /search?objectType=planservice&org=example.com applies
+    private QueryBuilder filters(String objectTypeField, String orgField) {
+        return QueryBuilders.boolQuery()
+                .filter(QueryBuilders.termQuery(objectTypeField, "planservice"))
+                .filter(QueryBuilders.termQuery(orgField, "example.com"));
+    }
+
+    private void index(JSONObject plan, String index) throws IOException {
+        BulkRequest bulkRequest = new BulkRequest();
+        for (PlanDocumentMapper.PlanDocument document : documentMapper.toDocuments(plan.toMap()).values()) {
+            bulkRequest.add(new IndexRequest(index).id(document.getObjectId()).routing(document.getRouting())
+                    .source(document.getSource()));
+        }
+        BulkResponse response = client.bulk(bulkRequest, RequestOptions.DEFAULT);
+        assertThat(response.hasFailures()).as(response.buildFailureMessage()).isFalse();
+    }
+
+    private void createIndex(String name, XContentBuilder mapping) throws IOException {
+        CreateIndexRequest request = new CreateIndexRequest(name);
+        request.settings(Settings.builder()
+                .put("index.number_of_shards", 1)
+                .put("index.number_of_replicas", 0)
+                .put("index.refresh_interval", "-1"));
+        request.mapping(mapping);
+        client.indices().create(request, RequestOptions.DEFAULT);
+    }
+
+    // Only the join field is declared; everything else is mapped dynamically, as the old per-type mapping left it
+    private XContentBuilder dynamicMapping() throws IOException {
+        XContentBuilder builder = XContentFactory.jsonBuilder();
+        builder.startObject();
+        {
+            builder.startObject("properties");
+            {
+                builder.startObject("plan_join");
+                {
+                    builder.field("type", "join");
+                    builder.startObject("relations");
+                    {
+                        builder.array("plan", "planCostShares", "linkedPlanServices");
+                        builder.array("linkedPlanServices", "linkedService", "planserviceCostShares");
+                    }
+                    builder.endObject();
+                }
+                builder.endObject();
+            }
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+
+    private void deleteIndices() throws IOException {
+        for (String index : new String[]{DYNAMIC_INDEX, TUNED_INDEX}) {
+            if (client.indices().exists(new GetIndexRequest(index), RequestOptions.DEFAULT)) {
+                client.indices().delete(new DeleteIndexRequest(index), RequestOptions.DEFAULT);
+            }
+        }
+    }
+}
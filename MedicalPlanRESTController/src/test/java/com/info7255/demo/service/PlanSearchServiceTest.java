@@ -0,0 +1,97 @@
+package com.info7255.demo.service;
+
+import com.info7255.demo.exception.BadRequestException;
+import com.info7255.demo.model.PlanSearchQuery;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.MatchQueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.join.query.HasChildQueryBuilder;
+import org.elasticsearch.join.query.HasParentQueryBuilder;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+// buildQuery only assembles the query, so no cluster or cache is needed
+class PlanSearchServiceTest {
+    private final PlanSearchService searchService = new PlanSearchService(null, null);
+
+    @Test
+    void fieldsBecomeFilters() {
+        PlanSearchQuery query = new PlanSearchQuery();
+        query.setType("planCostShares");
+        query.setOrg("example.com");
+        query.setCopay(23L);
+
+        BoolQueryBuilder boolQuery = searchService.buildQuery(query);
+
+        assertThat(boolQuery.filter()).containsExactly(
+                new TermQueryBuilder("plan_join", "planCostShares"),
+                new TermQueryBuilder("_org", "example.com"),
+                new TermQueryBuilder("copay", 23L));
+        assertThat(boolQuery.must()).isEmpty();
+    }
+
+    @Test
+    void nameIsMatchedNotFiltered() {
+        PlanSearchQuery query = new PlanSearchQuery();
+        query.setName("physical");
+
+        BoolQueryBuilder boolQuery = searchService.buildQuery(query);
+
+        assertThat(boolQuery.must()).containsExactly(new MatchQueryBuilder("name", "physical"));
+        assertThat(boolQuery.filter()).isEmpty();
+    }
+
+    @Test
+    void parentFiltersBecomeAHasParentQuery() {
+        PlanSearchQuery query = new PlanSearchQuery();
+        query.setParentType("linkedPlanServices");
+        query.setParentId("27283xvx9asdff-504");
+
+        BoolQueryBuilder boolQuery = searchService.buildQuery(query);
+
+        assertThat(boolQuery.filter()).hasSize(1).first().isInstanceOf(HasParentQueryBuilder.class);
+        HasParentQueryBuilder hasParent = (HasParentQueryBuilder) boolQuery.filter().get(0);
+        assertThat(hasParent.type()).isEqualTo("linkedPlanServices");
+        assertThat(((BoolQueryBuilder) hasParent.query()).filter()).containsExactly(new TermQueryBuilder("objectId", "27283xvx9asdff-504"));
+    }
+
+    @Test
+    void childFiltersBecomeAHasChildQuery() {
+        PlanSearchQuery query = new PlanSearchQuery();
+        query.setChildType("planCostShares");
+        query.setChildDeductible(2000L);
+
+        BoolQueryBuilder boolQuery = searchService.buildQuery(query);
+
+        assertThat(boolQuery.filter()).hasSize(1).first().isInstanceOf(HasChildQueryBuilder.class);
+        HasChildQueryBuilder hasChild = (HasChildQueryBuilder) boolQuery.filter().get(0);
+        assertThat(hasChild.childType()).isEqualTo("planCostShares");
+        assertThat(((BoolQueryBuilder) hasChild.query()).filter()).containsExactly(new TermQueryBuilder("deductible", 2000L));
+    }
+
+    @Test
+    void parentIdNeedsParentType() {
+        PlanSearchQuery query = new PlanSearchQuery();
+        query.setParentId("27283xvx9asdff-504");
+
+        assertThatThrownBy(() -> searchService.buildQuery(query)).isInstanceOf(BadRequestException.class);
+    }
+
+    @Test
+    void childFiltersNeedChildType() {
+        PlanSearchQuery query = new PlanSearchQuery();
+        query.setChildCopay(23L);
+
+        assertThatThrownBy(() -> searchService.buildQuery(query)).isInstanceOf(BadRequestException.class);
+    }
+
+    @Test
+    void unknownTypeIsRejected() {
+        PlanSearchQuery query = new PlanSearchQuery();
+        query.setType("membercostshare");
+
+        assertThatThrownBy(() -> searchService.buildQuery(query)).isInstanceOf(BadRequestException.class);
+    }
+}
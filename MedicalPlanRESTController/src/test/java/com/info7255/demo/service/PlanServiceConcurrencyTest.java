@@ -0,0 +1,106 @@
+package com.info7255.demo.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static com.info7255.demo.service.PlanFixtures.renamed;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.Mockito.mock;
+
+// Stress test for the shared JedisPool: many more threads than connections create, read, check and delete their own
+// plans at once. A connection shared between threads shows up as another thread's reply, a protocol error or a
+// leaked connection. Needs Redis on REDIS_HOST:REDIS_PORT (localhost:6379) and is skipped without one.
+class PlanServiceConcurrencyTest {
+    private static final int THREADS = 32;
+    private static final int POOL_SIZE = 8;
+    private static final int ROUNDS = 50;
+
+    private final PlanDocumentMapper documentMapper = new PlanDocumentMapper();
+    private JedisPool jedisPool;
+    private PlanService planService;
+
+    @BeforeEach
+    void connect() {
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(POOL_SIZE);
+        poolConfig.setMaxIdle(POOL_SIZE);
+        poolConfig.setMaxWaitMillis(10_000);
+        String host = System.getenv().getOrDefault("REDIS_HOST", "localhost");
+        int port = Integer.parseInt(System.getenv().getOrDefault("REDIS_PORT", "6379"));
+        jedisPool = new JedisPool(poolConfig, host, port, 2000);
+
+        boolean reachable;
+        try (Jedis jedis = jedisPool.getResource()) {
+            reachable = "PONG".equals(jedis.ping());
+        } catch (JedisConnectionException e) {
+            reachable = false;
+        }
+        assumeTrue(reachable, "No Redis at " + host + ":" + port);
+
+        SchemaRegistry schemaRegistry = new SchemaRegistry("");
+        // The near-cache is off, so every read goes through a pooled connection
+        PlanCache planCache = new PlanCache(jedisPool, new SimpleMeterRegistry(), mock(RedisMessageListenerContainer.class),
+                false, 1, Duration.ofSeconds(1));
+        planService = new PlanService(jedisPool, new ETagService(), new PlanScripts(), new SchemaTypeDecoder(schemaRegistry),
+                planCache, schemaRegistry, new SimpleMeterRegistry(), false);
+    }
+
+    @AfterEach
+    void close() {
+        jedisPool.close();
+    }
+
+    @Test
+    void threadsOutnumberingThePoolOnlySeeTheirOwnReplies() throws Exception {
+        String run = "-stress-" + System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> results = new ArrayList<>();
+        try {
+            for (int thread = 0; thread < THREADS; thread++) {
+                JSONObject plan = renamed(run + "-" + thread);
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return roundTrips(plan);
+                }));
+            }
+            start.countDown();
+
+            for (Future<Integer> result : results) assertThat(result.get(2, TimeUnit.MINUTES)).isEqualTo(ROUNDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(jedisPool.getNumActive()).isZero();
+    }
+
+    private int roundTrips(JSONObject plan) {
+        String key = "plan:" + plan.getString("objectId");
+        Map<String, PlanDocumentMapper.PlanDocument> expected = documentMapper.toDocuments(plan.toMap());
+        int rounds = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            String eTag = planService.createPlan(plan, key);
+            assertThat(planService.getETag(key)).isEqualTo(eTag);
+            assertThat(documentMapper.diff(expected, documentMapper.toDocuments(planService.readPlan(key))).isEmpty()).isTrue();
+
+            planService.deletePlan(key, List.of(eTag));
+            assertThat(planService.isKeyPresent(key)).isFalse();
+            rounds++;
+        }
+        return rounds;
+    }
+}
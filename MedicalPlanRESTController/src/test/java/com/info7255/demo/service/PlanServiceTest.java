@@ -0,0 +1,165 @@
+package com.info7255.demo.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import redis.clients.jedis.Transaction;
+
+import java.util.*;
+
+import static com.info7255.demo.service.PlanFixtures.*;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+// merge and writeChanges only work on maps and queue commands, so they run without Redis
+class PlanServiceTest {
+    private final PlanService planService = new PlanService(null, new ETagService(), null, null, null, null, new SimpleMeterRegistry(), false);
+
+    @Test
+    void mergePatchReplacesScalarsAndRemovesNulls() {
+        Map<String, Object> target = new LinkedHashMap<>(Map.of("planType", "inNetwork", "creationDate", "12-12-2017"));
+        Map<String, Object> patch = new HashMap<>();
+        patch.put("planType", "outOfNetwork");
+        patch.put("creationDate", null);
+
+        Map<String, Object> merged = (Map<String, Object>) planService.merge(target, patch, false);
+
+        assertThat(merged).containsOnly(Map.entry("planType", "outOfNetwork"));
+        assertThat(target).containsEntry("planType", "inNetwork");
+    }
+
+    @Test
+    void mergePatchMergesObjectsRecursively() {
+        Map<String, Object> patch = Map.of("planCostShares", Map.of("copay", 50));
+
+        Map<String, Object> merged = (Map<String, Object>) planService.merge(plan(), patch, false);
+
+        assertThat(member(merged, "planCostShares")).containsEntry("copay", 50).containsEntry("deductible", 2000);
+    }
+
+    @Test
+    void mergePatchReplacesArrays() {
+        Map<String, Object> patch = Map.of("linkedPlanServices", List.of(Map.of("objectType", "planservice", "objectId", "new")));
+
+        Map<String, Object> merged = (Map<String, Object>) planService.merge(plan(), patch, false);
+
+        assertThat((List<Object>) merged.get("linkedPlanServices")).containsExactly(Map.of("objectType", "planservice", "objectId", "new"));
+    }
+
+    @Test
+    void mergeByIdMergesMatchingItemsAndAppendsNewOnes() {
+        Map<String, Object> changed = Map.of("objectType", "planservice", "objectId", "27283xvx9sdf-507",
+                "planserviceCostShares", Map.of("copay", 200));
+        Map<String, Object> added = Map.of("objectType", "planservice", "objectId", "27283xvx9sdf-600");
+
+        Map<String, Object> merged = (Map<String, Object>) planService.merge(plan(), Map.of("linkedPlanServices", List.of(changed, added)), true);
+
+        List<Object> services = (List<Object>) merged.get("linkedPlanServices");
+        assertThat(services).hasSize(3);
+        assertThat(linkedPlanService(merged, 0)).isEqualTo(linkedPlanService(plan(), 0));
+        assertThat(member(linkedPlanService(merged, 1), "planserviceCostShares")).containsEntry("copay", 200).containsEntry("deductible", 10);
+        assertThat(linkedPlanService(merged, 2)).isEqualTo(added);
+    }
+
+    @Test
+    void newTreeWritesEveryNode() {
+        Transaction transaction = mock(Transaction.class);
+        Set<String> written = new HashSet<>();
+        Map<String, String> eTags = new HashMap<>();
+
+        String eTag = planService.writeChanges(transaction, null, plan(), written, eTags);
+
+        assertThat(written).hasSize(8).contains(PLAN_KEY, "service:1234520xvc30asdf-502");
+        assertThat(eTags).hasSize(8).containsEntry(PLAN_KEY, eTag);
+        assertThat(eTags(transaction)).containsEntry(PLAN_KEY, eTag);
+        verify(transaction).sadd(PLAN_KEY + ":linkedPlanServices", "planservice:27283xvx9asdff-504");
+        verify(transaction).set("parent:planservice:27283xvx9asdff-504", PLAN_KEY);
+        verify(transaction).hset("edges:" + PLAN_KEY, PLAN_KEY + ":linkedPlanServices", "array");
+        verify(transaction).hset("edges:" + PLAN_KEY, PLAN_KEY + ":planCostShares", "object");
+    }
+
+    @Test
+    void unchangedTreeWritesNothing() {
+        Map<String, Object> stored = stored();
+        Transaction transaction = mock(Transaction.class);
+        Set<String> written = new HashSet<>();
+
+        String eTag = planService.writeChanges(transaction, stored, plan(), written, new HashMap<>());
+
+        assertThat(eTag).isEqualTo(stored.get("eTag"));
+        assertThat(written).isEmpty();
+        verifyNoInteractions(transaction);
+    }
+
+    @Test
+    void changedLeafRehashesOnlyItsPath() {
+        Map<String, Object> stored = stored();
+        Map<String, Object> patched = plan();
+        member(linkedPlanService(patched, 1), "planserviceCostShares").put("copay", 200);
+        Transaction transaction = mock(Transaction.class);
+        Set<String> written = new HashSet<>();
+
+        String eTag = planService.writeChanges(transaction, stored, patched, written, new HashMap<>());
+
+        assertThat(eTag).isNotEqualTo(stored.get("eTag"));
+        assertThat(written).containsExactlyInAnyOrder(PLAN_KEY, "planservice:27283xvx9sdf-507", "membercostshare:1234512xvc1314sdfsd-506");
+        verify(transaction).hset("membercostshare:1234512xvc1314sdfsd-506", Map.of("copay", "200"));
+        verify(transaction, never()).hset(eq("planservice:27283xvx9asdff-504"), anyString(), anyString());
+    }
+
+    @Test
+    void removedMemberIsUnlinked() {
+        Map<String, Object> stored = stored();
+        Map<String, Object> patched = plan();
+        ((List<Object>) patched.get("linkedPlanServices")).remove(1);
+        Transaction transaction = mock(Transaction.class);
+        Set<String> written = new HashSet<>();
+
+        planService.writeChanges(transaction, stored, patched, written, new HashMap<>());
+
+        verify(transaction).srem(PLAN_KEY + ":linkedPlanServices", "planservice:27283xvx9sdf-507");
+        assertThat(written).containsExactly(PLAN_KEY);
+    }
+
+    @Test
+    void removedFieldIsDeletedFromTheHash() {
+        Map<String, Object> stored = stored();
+        Map<String, Object> patched = plan();
+        patched.remove("creationDate");
+        Transaction transaction = mock(Transaction.class);
+
+        planService.writeChanges(transaction, stored, patched, new HashSet<>(), new HashMap<>());
+
+        verify(transaction).hdel(PLAN_KEY, "creationDate");
+    }
+
+    // The sample plan as fetchObject returns it with eTags: every node carries the ETag writeChanges gave it
+    private Map<String, Object> stored() {
+        Transaction transaction = mock(Transaction.class);
+        planService.writeChanges(transaction, null, plan(), new HashSet<>(), new HashMap<>());
+        Map<String, Object> stored = plan();
+        addETags(stored, eTags(transaction));
+        return stored;
+    }
+
+    private Map<String, String> eTags(Transaction transaction) {
+        ArgumentCaptor<String> keys = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<String> values = ArgumentCaptor.forClass(String.class);
+        verify(transaction, atLeastOnce()).hset(keys.capture(), eq("eTag"), values.capture());
+        Map<String, String> eTags = new HashMap<>();
+        for (int i = 0; i < keys.getAllValues().size(); i++) eTags.put(keys.getAllValues().get(i), values.getAllValues().get(i));
+        return eTags;
+    }
+
+    private void addETags(Object value, Map<String, String> eTags) {
+        if (value instanceof Map) {
+            Map<String, Object> node = (Map<String, Object>) value;
+            node.values().forEach((member) -> addETags(member, eTags));
+            node.put("eTag", eTags.get(node.get("objectType") + ":" + node.get("objectId")));
+        } else if (value instanceof List) {
+            ((List<Object>) value).forEach((item) -> addETags(item, eTags));
+        }
+    }
+}
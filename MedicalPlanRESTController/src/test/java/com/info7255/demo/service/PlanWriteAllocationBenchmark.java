@@ -0,0 +1,68 @@
+package com.info7255.demo.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.info7255.demo.service.PlanFixtures.planJson;
+import static org.assertj.core.api.Assertions.assertThat;
+
+// Bytes allocated per POST/PUT body by each stage of the write path, measured on this thread with
+// com.sun.management.ThreadMXBean. The Jackson line is what parsing the same body into maps costs, for comparison
+// with the org.json parse everit needs. Not picked up by surefire's defaults; run it with
+// mvn test -Dtest=PlanWriteAllocationBenchmark
+class PlanWriteAllocationBenchmark {
+    private static final int WARMUP = 2_000;
+    private static final int ITERATIONS = 20_000;
+
+    private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final SchemaRegistry schemaRegistry = new SchemaRegistry("");
+    private final PlanService planService = new PlanService(null, new ETagService(), null, null, null, null, new SimpleMeterRegistry(), true);
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final String body = planJson().toString();
+    private final JSONObject plan = new JSONObject(body);
+
+    @Test
+    void allocationPerRequestByStage() {
+        assertThat(threads.isThreadAllocatedMemorySupported()).isTrue();
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        Map<String, Long> bytesPerRequest = new LinkedHashMap<>();
+        bytesPerRequest.put("org.json parse", measure(() -> new JSONObject(body)));
+        bytesPerRequest.put("schema validation", measure(() -> schemaRegistry.validate("plan", plan)));
+        bytesPerRequest.put("decomposition", measure(() -> {
+            List<PlanService.Node> nodes = new ArrayList<>();
+            planService.decompose(plan, null, new HashMap<>(), nodes::add);
+        }));
+        bytesPerRequest.put("toMap copy", measure(() -> plan.toMap()));
+        bytesPerRequest.put("Smile snapshot", measure(() -> planService.encodeSnapshot(plan.toMap())));
+        bytesPerRequest.put("Jackson parse", measure(() -> {
+            try {
+                objectMapper.readValue(body, Map.class);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }));
+
+        System.out.println("Plan body of " + body.length() + " chars, bytes allocated per request:");
+        bytesPerRequest.forEach((stage, bytes) -> System.out.println(String.format("  %-18s %,10d", stage, bytes)));
+        bytesPerRequest.values().forEach((bytes) -> assertThat(bytes).isPositive());
+    }
+
+    private long measure(Runnable stage) {
+        for (int i = 0; i < WARMUP; i++) stage.run();
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) stage.run();
+        return (threads.getThreadAllocatedBytes(threadId) - before) / ITERATIONS;
+    }
+}
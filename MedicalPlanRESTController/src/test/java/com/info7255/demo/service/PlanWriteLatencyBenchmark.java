@@ -0,0 +1,127 @@
+package com.info7255.demo.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.info7255.demo.service.PlanFixtures.withPlanServices;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.Mockito.mock;
+
+// Round trips and create latency per plan size: one command per field, edge and member, as jsonToMap used to write,
+// against createPlan's single MULTI/EXEC batch. Needs Redis on REDIS_HOST:REDIS_PORT (localhost:6379) and is
+// skipped without one. Not picked up by surefire's defaults; run it with mvn test -Dtest=PlanWriteLatencyBenchmark
+class PlanWriteLatencyBenchmark {
+    private static final int[] PLAN_SERVICES = {1, 10, 25};
+    private static final int WARMUP = 100;
+    private static final int ITERATIONS = 1_000;
+
+    private JedisPool jedisPool;
+    private PlanService planService;
+
+    @BeforeEach
+    void connect() {
+        String host = System.getenv().getOrDefault("REDIS_HOST", "localhost");
+        int port = Integer.parseInt(System.getenv().getOrDefault("REDIS_PORT", "6379"));
+        jedisPool = new JedisPool(host, port);
+
+        boolean reachable;
+        try (Jedis jedis = jedisPool.getResource()) {
+            reachable = "PONG".equals(jedis.ping());
+        } catch (JedisConnectionException e) {
+            reachable = false;
+        }
+        assumeTrue(reachable, "No Redis at " + host + ":" + port);
+
+        SchemaRegistry schemaRegistry = new SchemaRegistry("");
+        PlanCache planCache = new PlanCache(jedisPool, new SimpleMeterRegistry(), mock(RedisMessageListenerContainer.class),
+                false, 1, Duration.ofSeconds(1));
+        planService = new PlanService(jedisPool, new ETagService(), new PlanScripts(), new SchemaTypeDecoder(schemaRegistry),
+                planCache, schemaRegistry, new SimpleMeterRegistry(), false);
+    }
+
+    @AfterEach
+    void close() {
+        jedisPool.close();
+    }
+
+    @Test
+    void roundTripsAndLatencyPerPlanSize() {
+        System.out.println(String.format("%8s %10s %12s %12s %12s %12s %12s",
+                "objects", "mode", "round trips", "p50 us", "p99 us", "max us", "mean us"));
+        for (int planServices : PLAN_SERVICES) {
+            JSONObject plan = withPlanServices("-latency-" + System.nanoTime(), planServices);
+            String key = "plan:" + plan.getString("objectId");
+            int objects = 2 + 3 * planServices;
+
+            AtomicInteger commands = new AtomicInteger();
+            long[] unbatched = measure(key, () -> commands.set(writeUnbatched(plan)));
+            report(objects, "unbatched", commands.get(), unbatched);
+
+            long[] batched = measure(key, () -> planService.createPlan(plan, key));
+            report(objects, "MULTI", 1, batched);
+
+            assertThat(commands.get()).isGreaterThan(objects);
+        }
+    }
+
+    // One round trip per command, the way plans were written before the MULTI/EXEC batch
+    private int writeUnbatched(JSONObject plan) {
+        AtomicInteger commands = new AtomicInteger();
+        try (Jedis jedis = jedisPool.getResource()) {
+            planService.decompose(plan, null, new HashMap<>(), (node) -> {
+                node.getFields().forEach((field, value) -> {
+                    jedis.hset(node.getKey(), field, value);
+                    commands.incrementAndGet();
+                });
+                node.getEdges().forEach((relationKey, edge) -> {
+                    jedis.hset(PlanService.EDGES_PREFIX + node.getKey(), relationKey, edge);
+                    commands.incrementAndGet();
+                });
+                node.getMembers().forEach((relationKey, members) -> members.forEach((member) -> {
+                    jedis.sadd(relationKey, member);
+                    commands.incrementAndGet();
+                }));
+                if (node.getParentKey() != null) {
+                    jedis.set(PlanService.PARENT_PREFIX + node.getKey(), node.getParentKey());
+                    commands.incrementAndGet();
+                }
+            });
+        }
+        return commands.get();
+    }
+
+    // Times each write; the plan is deleted after every one, outside the timing
+    private long[] measure(String key, Runnable write) {
+        long[] nanos = new long[ITERATIONS];
+        for (int i = -WARMUP; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            write.run();
+            if (i >= 0) nanos[i] = System.nanoTime() - start;
+            planService.deletePlan(key, List.of(planService.getETag(key)));
+        }
+        Arrays.sort(nanos);
+        return nanos;
+    }
+
+    private void report(int objects, String mode, int roundTrips, long[] sortedNanos) {
+        System.out.println(String.format("%8d %10s %12d %12d %12d %12d %12d", objects, mode, roundTrips,
+                sortedNanos[sortedNanos.length / 2] / 1000,
+                sortedNanos[(int) Math.ceil(sortedNanos.length * 0.99) - 1] / 1000,
+                sortedNanos[sortedNanos.length - 1] / 1000,
+                Arrays.stream(sortedNanos).sum() / sortedNanos.length / 1000));
+    }
+}
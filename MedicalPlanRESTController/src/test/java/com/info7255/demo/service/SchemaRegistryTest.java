@@ -0,0 +1,90 @@
+package com.info7255.demo.service;
+
+import com.info7255.demo.exception.BadRequestException;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static com.info7255.demo.service.PlanFixtures.planJson;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SchemaRegistryTest {
+    private final SchemaRegistry schemaRegistry = new SchemaRegistry("");
+
+    @Test
+    void builtInSchemaRegistersEveryObjectType() {
+        assertThat(schemaRegistry.getVersions()).containsKeys("plan", "membercostshare", "planservice", "service");
+    }
+
+    @Test
+    void samplePlanIsValid() {
+        schemaRegistry.validate("plan", planJson());
+    }
+
+    @Test
+    void missingRequiredFieldIsRejected() {
+        JSONObject plan = planJson();
+        plan.remove("planType");
+
+        assertThatThrownBy(() -> schemaRegistry.validate("plan", plan)).isInstanceOf(BadRequestException.class);
+    }
+
+    @Test
+    void nestedObjectsValidateAgainstTheirOwnType() {
+        JSONObject costShares = planJson().getJSONObject("planCostShares");
+        schemaRegistry.validate("membercostshare", costShares);
+
+        costShares.put("copay", "free");
+        assertThatThrownBy(() -> schemaRegistry.validate("membercostshare", costShares)).isInstanceOf(BadRequestException.class);
+    }
+
+    @Test
+    void unknownObjectTypeIsRejected() {
+        assertThatThrownBy(() -> schemaRegistry.validate("unknown", new JSONObject())).isInstanceOf(BadRequestException.class);
+    }
+
+    @Test
+    void fieldTypesComeFromTheSchema() {
+        assertThat(schemaRegistry.getFieldTypes("membercostshare"))
+                .containsEntry("copay", "integer")
+                .containsEntry("deductible", "integer")
+                .containsEntry("objectId", "string")
+                .doesNotContainKey("planCostShares");
+        assertThat(schemaRegistry.getFieldTypes("plan")).doesNotContainKeys("planCostShares", "linkedPlanServices");
+        assertThat(schemaRegistry.getFieldType("copay")).isEqualTo("integer");
+    }
+
+    @Test
+    void higherVersionFromTheDirectoryWins(@TempDir Path directory) throws IOException {
+        Files.writeString(directory.resolve("service.v2.json"), new JSONObject()
+                .put("type", "object")
+                .put("required", new JSONArray(List.of("name", "rating")))
+                .put("properties", new JSONObject()
+                        .put("name", new JSONObject().put("type", "string"))
+                        .put("rating", new JSONObject().put("type", "number")))
+                .toString());
+        SchemaRegistry registry = new SchemaRegistry(directory.toString());
+
+        assertThat(registry.getVersions()).containsEntry("service", 2).containsEntry("plan", 1);
+        assertThat(registry.getFieldTypes("service")).containsEntry("rating", "number");
+        JSONObject service = planJson().getJSONArray("linkedPlanServices").getJSONObject(0).getJSONObject("linkedService");
+        assertThatThrownBy(() -> registry.validate("service", service)).isInstanceOf(BadRequestException.class);
+    }
+
+    @Test
+    void reloadPicksUpNewFiles(@TempDir Path directory) throws IOException {
+        SchemaRegistry registry = new SchemaRegistry(directory.toString());
+        assertThat(registry.getVersions()).containsEntry("service", 1);
+
+        Files.writeString(directory.resolve("service.v3.json"), new JSONObject().put("type", "object").toString());
+
+        assertThat(registry.reload()).containsEntry("service", 3);
+    }
+}
@@ -0,0 +1,95 @@
+package com.info7255.demo.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static com.info7255.demo.service.PlanFixtures.withPlanServices;
+import static org.assertj.core.api.Assertions.assertThat;
+
+// Time and bytes allocated to decode a stored 77-object plan, whose scalars come back from Redis as strings:
+// SchemaTypeDecoder against the isInteger helper it replaced, which tried Integer.parseInt on every string and
+// caught the exception. Each run decodes a fresh copy, so the copy alone is reported as the baseline. A plain timed
+// loop with warmup rather than JMH, which is not a dependency of this project. Not picked up by surefire's
+// defaults; run it with mvn test -Dtest=SchemaTypeDecoderBenchmark
+class SchemaTypeDecoderBenchmark {
+    private static final int WARMUP = 5_000;
+    private static final int ITERATIONS = 50_000;
+
+    private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final SchemaTypeDecoder decoder = new SchemaTypeDecoder(new SchemaRegistry(""));
+    private final Map<String, Object> stored = (Map<String, Object>) stringified(withPlanServices("-decode", 25).toMap());
+
+    @Test
+    void schemaTypesAgainstTrialParsing() {
+        Map<String, Object> decoded = copy();
+        decoder.decode(decoded);
+        assertThat(decoded).containsEntry("objectId", PlanFixtures.PLAN_ID + "-decode");
+
+        System.out.println(String.format("%-16s %12s %12s", "decoder", "ns/plan", "bytes/plan"));
+        report("copy only", (object) -> { });
+        report("schema types", decoder::decode);
+        report("isInteger", this::decodeByTrialParsing);
+    }
+
+    private void report(String name, Consumer<Map<String, Object>> decode) {
+        for (int i = 0; i < WARMUP; i++) decode.accept(copy());
+
+        long threadId = Thread.currentThread().getId();
+        long bytesBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) decode.accept(copy());
+        long nanos = System.nanoTime() - start;
+        long bytes = threads.getThreadAllocatedBytes(threadId) - bytesBefore;
+        System.out.println(String.format("%-16s %,12d %,12d", name, nanos / ITERATIONS, bytes / ITERATIONS));
+    }
+
+    private Map<String, Object> copy() {
+        return (Map<String, Object>) PlanFixtures.copy(stored);
+    }
+
+    // The decoding PlanService did before SchemaTypeDecoder
+    private void decodeByTrialParsing(Map<String, Object> object) {
+        for (Map.Entry<String, Object> entry : object.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Map) {
+                decodeByTrialParsing((Map<String, Object>) value);
+            } else if (value instanceof List) {
+                for (Object item : (List<Object>) value) {
+                    if (item instanceof Map) decodeByTrialParsing((Map<String, Object>) item);
+                }
+            } else if (value instanceof String && isInteger((String) value)) {
+                entry.setValue(Integer.parseInt((String) value));
+            }
+        }
+    }
+
+    private boolean isInteger(String str) {
+        try {
+            Integer.parseInt(str);
+        } catch (Exception e) {
+            return false;
+        }
+        return true;
+    }
+
+    // Every scalar as a string, the way hash fields are read back
+    private static Object stringified(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> copy = new LinkedHashMap<>();
+            ((Map<String, Object>) value).forEach((name, member) -> copy.put(name, stringified(member)));
+            return copy;
+        }
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<>();
+            ((List<Object>) value).forEach((item) -> copy.add(stringified(item)));
+            return copy;
+        }
+        return String.valueOf(value);
+    }
+}
@@ -0,0 +1,100 @@
+package com.info7255.demo.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// Redis hashes hand every scalar back as a string; the decoder restores the schema's types
+class SchemaTypeDecoderTest {
+    private final SchemaTypeDecoder decoder = new SchemaTypeDecoder(new SchemaRegistry(""));
+
+    @Test
+    void integersDecodeAsLongsAndStringsStayStrings() {
+        Map<String, Object> costShares = object("membercostshare", "501");
+        costShares.put("copay", "23");
+        costShares.put("deductible", "3000000000");
+
+        decoder.decode(costShares);
+
+        assertThat(costShares)
+                .containsEntry("copay", 23L)
+                .containsEntry("deductible", 3000000000L)
+                .containsEntry("objectId", "501")
+                .containsEntry("_org", "example.com");
+    }
+
+    @Test
+    void numericLookingStringFieldsAreNotParsed() {
+        Map<String, Object> service = object("service", "502");
+        service.put("name", "100");
+
+        decoder.decode(service);
+
+        assertThat(service).containsEntry("name", "100").containsEntry("objectId", "502");
+    }
+
+    @Test
+    void nestedObjectsAndArraysAreDecodedWithTheirOwnType() {
+        Map<String, Object> costShares = object("membercostshare", "506");
+        costShares.put("copay", "175");
+        Map<String, Object> planService = object("planservice", "507");
+        planService.put("planserviceCostShares", costShares);
+        Map<String, Object> plan = object("plan", "508");
+        plan.put("linkedPlanServices", List.of(planService));
+
+        decoder.decode(plan);
+
+        assertThat(costShares).containsEntry("copay", 175L);
+    }
+
+    @Test
+    void fieldsOutsideTheObjectsSchemaFallBackToTheFieldName() {
+        Map<String, Object> plan = object("plan", "508");
+        plan.put("copay", "5");
+
+        decoder.decode(plan);
+
+        assertThat(plan).containsEntry("copay", 5L);
+    }
+
+    @Test
+    void unknownFieldsStayStrings() {
+        Map<String, Object> plan = object("plan", "508");
+        plan.put("note", "42");
+
+        decoder.decode(plan);
+
+        assertThat(plan).containsEntry("note", "42");
+    }
+
+    @Test
+    void numbersAndBooleansFollowOverriddenSchemas(@TempDir Path directory) throws IOException {
+        Files.writeString(directory.resolve("service.v2.json"),
+                "{\"type\": \"object\", \"properties\": {\"rating\": {\"type\": \"number\"}, \"covered\": {\"type\": \"boolean\"}}}");
+        SchemaTypeDecoder overridden = new SchemaTypeDecoder(new SchemaRegistry(directory.toString()));
+        Map<String, Object> service = object("service", "502");
+        service.put("rating", "4.50");
+        service.put("covered", "true");
+
+        overridden.decode(service);
+
+        assertThat(service).containsEntry("rating", new BigDecimal("4.50")).containsEntry("covered", true);
+    }
+
+    private Map<String, Object> object(String objectType, String objectId) {
+        Map<String, Object> object = new LinkedHashMap<>();
+        object.put("objectType", objectType);
+        object.put("objectId", objectId);
+        object.put("_org", "example.com");
+        return object;
+    }
+}